@@ -0,0 +1,8 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+# Measures throughput and latency percentiles of the main query paths.
+# Usage: benchmark.sh [-seed USERS] [-threads N] [-warmup SECONDS] [-duration SECONDS] [-prefix bench] [-ops LogIn,...]
+# e.g. benchmark.sh -seed 10000 -threads 8 -duration 60
+# Only synthetic users are run as. Larger datasets are generated and loaded with
+# generate_data.sh, their users are run as with -prefix user.
+java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar Benchmark $DB_NAME $PGPORT $USER "$@"
@@ -5,9 +5,16 @@ export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
 export PATH=$JAVA_HOME/bin:$PATH
 
 # compile the java program
-javac -d $DIR/../classes $DIR/../src/ProfNetwork.java
+javac -cp $DIR/../lib/pg73jdbc3.jar -d $DIR/../classes $DIR/../src/*.java
 
 #run the java program
 #Use your database name, port number and login
 java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar ProfNetwork $DB_NAME $PGPORT $USER
 
+
+#or run it as a server, one session per client connection (e.g. nc localhost 6166)
+#java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar ProfNetwork $DB_NAME $PGPORT $USER 6166
+
+#metrics are always available over JMX, add e.g. -Dprofnetwork.metrics.port=9166 for
+#Prometheus text on http://localhost:9166/metrics or -Dprofnetwork.metrics.dumpFile=metrics.txt
+#java -Dprofnetwork.metrics.port=9166 -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar ProfNetwork $DB_NAME $PGPORT $USER
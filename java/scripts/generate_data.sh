@@ -0,0 +1,15 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+# Writes a synthetic dataset in the format of load_data.sql.
+# Usage: generate_data.sh <dataDir> [-users N] [-seed S] [-alpha A] [-maxDegree N] [-messages AVG] [-load]
+# e.g. generate_data.sh /tmp/data -users 1000000 -messages 100 -load
+ARGS=()
+for a in "$@"; do
+   if [ "$a" == "-load" ]; then
+      ARGS+=(-load $DB_NAME $PGPORT $USER -rebuildIndexes $DIR/../../sql/src/create_index.sql
+             -triggers $DIR/../../sql/src/triggers.sql)
+   else
+      ARGS+=("$a")
+   fi
+done
+java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar DataGenerator "${ARGS[@]}"
@@ -0,0 +1,8 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+# Loads the tab-delimited data files from the client side in parallel.
+# Usage: load_data.sh <dataDir> [-threads N] [-chunk ROWS]
+# The indexes of create_index.sql are dropped before and rebuilt after the load,
+# the triggers are off during the load and triggers.sql counts the loaded rows.
+java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar BulkLoader $DB_NAME $PGPORT $USER "$@" \
+   -rebuildIndexes $DIR/../../sql/src/create_index.sql -triggers $DIR/../../sql/src/triggers.sql
@@ -0,0 +1,6 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+# Converts the char(N) columns of an existing database to varchar(N) while
+# the application keeps running, and prints the table sizes before and after.
+# Usage: migrate_schema.sh [-tables T1,T2] [-batch ROWS] [-pause MS] [-lockTimeout MS] [-attempts N] [-vacuumFull]
+java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar SchemaMigrator $DB_NAME $PGPORT $USER "$@"
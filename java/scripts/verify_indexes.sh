@@ -0,0 +1,7 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+# Runs EXPLAIN on every query the application issues, taken from the query
+# constants in the classes themselves, and lists the ones whose plan still
+# contains a sequential scan or that are not checked.  Exits with 1 if there
+# is any.
+java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar IndexVerifier $DB_NAME $PGPORT $USER
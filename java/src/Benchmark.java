@@ -0,0 +1,333 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ * Group #52
+ */
+
+
+import java.io.BufferedReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class measures the throughput and latency of the main query paths
+ * of ProfNetwork against a live database.
+ *
+ * Every operation drives the real menu method with a scripted input and
+ * throws its output away, so what is measured is exactly what a session
+ * does: LogIn, ViewFriends, CheckDepth, SendRequest, ViewMessages (first
+ * page and the next one) and SearchPeople (profile load).  Worker threads
+ * pick a random sample user for every call.  Only synthetic users are
+ * sampled, those of -seed or, with -prefix user, those of DataGenerator, so
+ * the rows written by SendRequest, LogIn and ViewMessages never touch real
+ * accounts.  After a warm up period the
+ * latencies of each operation are recorded for a fixed duration and
+ * reported as throughput and percentiles.
+ *
+ * With -seed the database is first filled with a synthetic dataset of the
+ * given number of users, unless it already holds one.
+ */
+public class Benchmark {
+
+   // the operations that can be measured, in report order
+   static final String[] OPERATIONS = {
+      "LogIn", "ViewFriends", "CheckDepth", "SendRequest", "ViewMessages", "SearchPeople"
+   };
+
+   // synthetic users are called bench0000000, bench0000001, ...
+   static final String SEED_PREFIX = "bench";
+   static final String SEED_PASSWORD = "bench";
+
+   // sample users, with their passwords
+   private final List<String[]> _users = new ArrayList<String[]>();
+   // the sample users whose plain text password is known, for LogIn
+   private final List<String[]> _logins = new ArrayList<String[]>();
+   private final ProfNetwork _esql;
+   private final Map<String, LatencyHistogram> _latencies = new LinkedHashMap<String, LatencyHistogram>();
+   private final Map<String, AtomicLong> _errors = new LinkedHashMap<String, AtomicLong>();
+   private volatile boolean _recording = false;
+   private volatile boolean _running = true;
+
+   // menu output is not part of the measurement
+   private static final PrintStream DISCARD = new PrintStream(new OutputStream() {
+      public void write (int b) {}
+      public void write (byte[] b, int off, int len) {}
+   });
+
+   Benchmark (ProfNetwork esql, String[] operations) {
+      this._esql = esql;
+      for (String op : operations){
+         this._latencies.put(op, new LatencyHistogram());
+         this._errors.put(op, new AtomicLong());
+      }//end for
+   }//end Benchmark
+
+   /**
+    * Reads up to count users whose userId starts with prefix to run the
+    * operations as.
+    */
+   void sampleUsers (int count, String prefix) throws SQLException {
+      this._esql.executeQueryAndStream(
+            "SELECT userId, password FROM USR WHERE userId LIKE ? ORDER BY random() LIMIT ?",
+            new ProfNetwork.RowHandler() {
+               public void handle (String[] row) {
+                  String[] user = { row[0], knownPassword(row[0], row[1]) };
+                  _users.add(user);
+                  if (user[1] != null)
+                     _logins.add(user);
+               }
+            }, prefix + "%", count);
+   }//end sampleUsers
+
+   /**
+    * Passwords are hashed on the first login, after which only the
+    * synthetic users' password is still known.
+    */
+   static String knownPassword (String userId, String stored) {
+      if (!Credentials.isHashed(stored))
+         return stored;
+      return userId.startsWith(SEED_PREFIX) ? SEED_PASSWORD : null;
+   }//end knownPassword
+
+   /**
+    * Runs one operation as user, with target as the other party.
+    */
+   void run (String op, String[] user, String target) throws Exception {
+      String id = user[0];
+      if ("LogIn".equals(op)){
+         if (ProfNetwork.LogIn(this._esql, script(id, user[1]), DISCARD) == null)
+            throw new IllegalStateException("login failed for " + id);
+      }else if ("ViewFriends".equals(op)){
+         ProfNetwork.ViewFriends(this._esql, script("9"), DISCARD, id);
+      }else if ("CheckDepth".equals(op)){
+         ProfNetwork.CheckDepth(this._esql, id, target);
+      }else if ("SendRequest".equals(op)){
+         ProfNetwork.SendRequest(this._esql, script(), DISCARD, id, target);
+      }else if ("ViewMessages".equals(op)){
+         ProfNetwork.ViewMessages(this._esql, script("2", "9"), DISCARD, id);
+      }else if ("SearchPeople".equals(op)){
+         ProfNetwork.SearchPeople(this._esql, script(target, "9"), DISCARD, id, null);
+      }else
+         throw new IllegalArgumentException("Unknown operation " + op);
+   }//end run
+
+   private static BufferedReader script (String... lines) {
+      StringBuilder text = new StringBuilder();
+      for (String line : lines)
+         text.append(line).append('\n');
+      return new BufferedReader(new StringReader(text.toString()));
+   }//end script
+
+   /**
+    * Runs the operations round robin on the given number of threads,
+    * recording latencies only once the warm up period is over.
+    */
+   void measure (int threads, long warmupMillis, long durationMillis, final long seed) throws InterruptedException {
+      final String[] ops = this._latencies.keySet().toArray(new String[0]);
+      List<Thread> workers = new ArrayList<Thread>();
+      for (int t = 0; t < threads; ++t){
+         final int worker = t;
+         Thread thread = new Thread("Benchmark-" + t) {
+            public void run () {
+               Random random = new Random(seed + worker);
+               int i = worker;
+               while (_running){
+                  String op = ops[i++ % ops.length];
+                  List<String[]> users = "LogIn".equals(op) && !_logins.isEmpty() ? _logins : _users;
+                  String[] user = users.get(random.nextInt(users.size()));
+                  String target = _users.get(random.nextInt(_users.size()))[0];
+                  long start = System.nanoTime();
+                  try{
+                     Benchmark.this.run(op, user, target);
+                     if (_recording)
+                        _latencies.get(op).record(System.nanoTime() - start);
+                  }catch (Exception e){
+                     if (_recording)
+                        _errors.get(op).incrementAndGet();
+                  }//end try
+               }//end while
+            }
+         };
+         thread.setDaemon(true);
+         workers.add(thread);
+         thread.start();
+      }//end for
+
+      Thread.sleep(warmupMillis);
+      this._recording = true;
+      Thread.sleep(durationMillis);
+      this._recording = false;
+      this._running = false;
+      for (Thread thread : workers)
+         thread.join();
+   }//end measure
+
+   /**
+    * Prints throughput and latency percentiles, in milliseconds, per operation.
+    */
+   void report (PrintStream out, long durationMillis) {
+      String header = String.format("%-14s %9s %9s %7s %9s %9s %9s %9s %9s %9s",
+                                    "operation", "ops", "ops/s", "errors",
+                                    "mean", "p50", "p90", "p99", "p99.9", "max");
+      out.println(header);
+      out.println(String.format("%" + header.length() + "s", "").replace(' ', '-'));
+      for (Map.Entry<String, LatencyHistogram> e : this._latencies.entrySet()){
+         LatencyHistogram h = e.getValue();
+         out.println(String.format("%-14s %9d %9.1f %7d %9.3f %9.3f %9.3f %9.3f %9.3f %9.3f",
+                                   e.getKey(), h.count(), h.count() * 1000.0 / durationMillis,
+                                   this._errors.get(e.getKey()).get(), h.mean() / 1e6,
+                                   h.percentile(50) / 1e6, h.percentile(90) / 1e6,
+                                   h.percentile(99) / 1e6, h.percentile(99.9) / 1e6, h.max() / 1e6));
+      }//end for
+      out.println();
+      out.println("pool:     " + this._esql.getPool().stats());
+      out.println("profiles: " + this._esql.getProfiles().stats());
+      out.println("writes:   " + this._esql.getWrites().stats());
+   }//end report
+
+   /**
+    * Fills the database with users named SEED_PREFIX plus a number, each
+    * with one work and one education record.  User i is connected to the
+    * next friends users (wrapping around), which makes every user reachable
+    * within a few hops, and sends messages messages to those friends.
+    * Nothing is inserted if the first synthetic user already exists.
+    *
+    * @return false when the dataset was already there
+    */
+   static boolean seed (ProfNetwork esql, int users, int friends, int messages) throws SQLException {
+      if (esql.executeQuery("SELECT 1 FROM USR WHERE userId = ?", seedUser(0)) > 0)
+         return false;
+      friends = Math.min(friends, (users - 1) / 2);
+
+      List<Object[]> rows = new ArrayList<Object[]>();
+      for (int i = 0; i < users; ++i)
+         rows.add(new Object[]{ seedUser(i), SEED_PASSWORD, seedUser(i) + "@example.com", "Bench User " + i });
+      esql.executeBatch("INSERT INTO USR (userId, password, email, name) VALUES (?, ?, ?, ?)", rows);
+
+      rows.clear();
+      for (int i = 0; i < users; ++i)
+         rows.add(new Object[]{ seedUser(i), "Company " + (i % 97), "Engineer", "Riverside" });
+      esql.executeBatch("INSERT INTO WORK_EXPR (userId, company, role, location, startDate) "
+                        + "VALUES (?, ?, ?, ?, CURRENT_DATE)", rows);
+
+      rows.clear();
+      for (int i = 0; i < users; ++i)
+         rows.add(new Object[]{ seedUser(i), "University " + (i % 53), "Computer Science", "BS" });
+      esql.executeBatch("INSERT INTO EDUCATIONAL_DETAILS (userId, instituitionName, major, degree) "
+                        + "VALUES (?, ?, ?, ?)", rows);
+
+      rows.clear();
+      for (int i = 0; i < users; ++i)
+         for (int k = 1; k <= friends; ++k)
+            rows.add(new Object[]{ seedUser(i), seedUser((i + k) % users) });
+      esql.executeBatch("INSERT INTO CONNECTION_USR (userId, connectionId, status) "
+                        + "VALUES (?, ?, 'Accept')", rows);
+
+      rows.clear();
+      for (int i = 0; i < users && friends > 0; ++i)
+         for (int m = 0; m < messages; ++m)
+            rows.add(new Object[]{ seedUser(i), seedUser((i + 1 + m % friends) % users),
+                                   "Benchmark message " + m + " from " + i });
+      esql.executeBatch("INSERT INTO MESSAGE (senderId, receiverId, contents, status) "
+                        + "VALUES (?, ?, ?, 'Sent')", rows);
+      return true;
+   }//end seed
+
+   private static String join (String[] values) {
+      StringBuilder text = new StringBuilder();
+      for (String value : values)
+         text.append(text.length() == 0 ? "" : ",").append(value);
+      return text.toString();
+   }//end join
+
+   static String seedUser (int i) {
+      return String.format("%s%07d", SEED_PREFIX, i);
+   }
+
+   /**
+    * Usage: Benchmark <dbname> <port> <user> [-seed USERS] [-friends N]
+    *        [-messages N] [-threads N] [-warmup SECONDS] [-duration SECONDS]
+    *        [-sample USERS] [-prefix bench] [-ops LogIn,ViewFriends,...]
+    */
+   public static void main (String[] args) {
+      if (args.length < 3){
+         System.err.println("Usage: java [-classpath <classpath>] " + Benchmark.class.getName()
+               + " <dbname> <port> <user> [-seed USERS] [-friends N] [-messages N]"
+               + " [-threads N] [-warmup SECONDS] [-duration SECONDS] [-sample USERS]"
+               + " [-prefix " + SEED_PREFIX + "] [-ops " + join(OPERATIONS) + "]");
+         return;
+      }//end if
+
+      int seedUsers = 0, friends = 10, messages = 20, threads = 4, sample = 1000;
+      long warmup = 10, duration = 30;
+      String[] ops = OPERATIONS;
+      String prefix = SEED_PREFIX;
+      for (int i = 3; i + 1 < args.length; i += 2){
+         String value = args[i + 1];
+         if ("-seed".equals(args[i])) seedUsers = Integer.parseInt(value);
+         else if ("-friends".equals(args[i])) friends = Integer.parseInt(value);
+         else if ("-messages".equals(args[i])) messages = Integer.parseInt(value);
+         else if ("-threads".equals(args[i])) threads = Integer.parseInt(value);
+         else if ("-warmup".equals(args[i])) warmup = Long.parseLong(value);
+         else if ("-duration".equals(args[i])) duration = Long.parseLong(value);
+         else if ("-sample".equals(args[i])) sample = Integer.parseInt(value);
+         else if ("-prefix".equals(args[i])) prefix = value;
+         else if ("-ops".equals(args[i])) ops = value.split(",");
+         else{
+            System.err.println("Unknown option " + args[i]);
+            return;
+         }//end if
+      }//end for
+
+      ProfNetwork esql = null;
+      try{
+         Class.forName("org.postgresql.Driver").newInstance();
+         if (seedUsers > 0){
+            // the connection graph is loaded after seeding, by the second instance
+            System.setProperty("profnetwork.graph", "false");
+            esql = new ProfNetwork(args[0], args[1], args[2], "");
+            long start = System.currentTimeMillis();
+            if (seed(esql, seedUsers, friends, messages))
+               System.out.println("Seeded " + seedUsers + " users in "
+                                  + (System.currentTimeMillis() - start) + " ms");
+            else
+               System.out.println("Synthetic users already present, not seeding");
+            esql.cleanup();
+            System.clearProperty("profnetwork.graph");
+         }//end if
+
+         esql = new ProfNetwork(args[0], args[1], args[2], "");
+         Benchmark bench = new Benchmark(esql, ops);
+         bench.sampleUsers(sample, prefix);
+         if (bench._users.isEmpty()){
+            System.err.println("No " + prefix + "* users to run as, use -seed");
+            return;
+         }//end if
+         System.out.println("Running " + join(ops) + " on " + threads + " threads as "
+                            + bench._users.size() + " users, " + warmup + "s warm up, "
+                            + duration + "s measured");
+         bench.measure(threads, warmup * 1000, duration * 1000, 42L);
+         bench.report(System.out, duration * 1000);
+      }catch (Exception e){
+         System.err.println(e.getMessage());
+      }finally{
+         if (esql != null)
+            esql.cleanup();
+      }//end try
+   }//end main
+}//end Benchmark
@@ -0,0 +1,550 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ * Group #52
+ */
+
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * This class loads the tab-delimited data files read by load_data.sql from
+ * the client side, so the files do not have to be on the database host.
+ *
+ * Each file is read as a stream and cut into chunks that are inserted in
+ * parallel, each chunk in its own transaction on a pooled connection with
+ * multi-row INSERT statements.  USR is loaded first, the tables that
+ * reference it are loaded together afterwards.  The indexes of
+ * create_index.sql can be dropped before the load and rebuilt after it.
+ *
+ * The bundled 7.3 JDBC driver has no COPY support (CopyManager), which is
+ * why the rows are sent as INSERTs.
+ *
+ * The user triggers are disabled during the load: the reciprocal request
+ * trigger would rewrite loaded rows and the counting triggers would have
+ * the parallel chunks wait on each other's USR_STATS and CONVERSATION rows.
+ * triggers.sql is run afterwards to count the loaded rows instead.  The
+ * indexes and triggers are restored even when the load fails.
+ */
+public class BulkLoader {
+
+   /**
+    * A table, the file that holds its rows, and how each column is cast.
+    */
+   static class Table {
+      final String name;
+      final String file;
+      final String[] columns;
+      final String[] casts;
+
+      Table (String name, String file, String[] columns, String[] casts) {
+         this.name = name;
+         this.file = file;
+         this.columns = columns;
+         this.casts = casts;
+      }
+
+      /**
+       * @return a multi-row INSERT statement for the given number of rows
+       */
+      String insert (int rows) {
+         StringBuilder row = new StringBuilder("(");
+         for (int i = 0; i < this.columns.length; ++i){
+            if (i > 0)
+               row.append(", ");
+            row.append(this.casts[i] == null ? "?" : "CAST(? AS " + this.casts[i] + ")");
+         }//end for
+         row.append(")");
+         StringBuilder sql = new StringBuilder("INSERT INTO ").append(this.name).append(" (");
+         for (int i = 0; i < this.columns.length; ++i)
+            sql.append(i > 0 ? ", " : "").append(this.columns[i]);
+         sql.append(") VALUES ");
+         for (int i = 0; i < rows; ++i)
+            sql.append(i > 0 ? ", " : "").append(row);
+         return sql.toString();
+      }//end insert
+   }//end Table
+
+   static final Table USR = new Table("USR", "USR.txt",
+         new String[]{ "userId", "password", "email", "name", "dateOfBirth" },
+         new String[]{ null, null, null, null, "date" });
+   static final Table WORK_EXPR = new Table("WORK_EXPR", "Work_Ex.txt",
+         new String[]{ "userId", "company", "role", "location", "startDate", "endDate" },
+         new String[]{ null, null, null, null, "date", "date" });
+   static final Table EDUCATIONAL_DETAILS = new Table("EDUCATIONAL_DETAILS", "Edu_Det.txt",
+         new String[]{ "userId", "instituitionName", "major", "degree", "startdate", "enddate" },
+         new String[]{ null, null, null, null, "date", "date" });
+   static final Table MESSAGE = new Table("MESSAGE", "Message.txt",
+         new String[]{ "msgId", "senderId", "receiverId", "contents", "sendTime", "deleteStatus", "status" },
+         new String[]{ "integer", null, null, null, "timestamp", "integer", null });
+   static final Table CONNECTION_USR = new Table("CONNECTION_USR", "Connection.txt",
+         new String[]{ "userId", "connectionId", "status" },
+         new String[]{ null, null, null });
+
+   // tables in foreign key order, the tables of one phase are loaded together
+   static final Table[][] PHASES = {
+      { USR },
+      { WORK_EXPR, EDUCATIONAL_DETAILS, CONNECTION_USR, MESSAGE }
+   };
+
+   // rows per INSERT statement
+   static final int ROWS_PER_INSERT = 100;
+
+   // the opening tag of a dollar-quoted string, $$ or $name$
+   static final Pattern DOLLAR_QUOTE = Pattern.compile("\\$(?:[A-Za-z_][A-Za-z_0-9]*)?\\$");
+
+   /**
+    * The rows loaded into one table and when its last chunk was committed.
+    */
+   static class Progress {
+      private long _rows = 0;
+      private long _finished;
+
+      Progress (long started) {
+         this._finished = started;
+      }
+
+      synchronized void add (long rows) {
+         this._rows += rows;
+         this._finished = System.nanoTime();
+      }//end add
+
+      synchronized long rows () {
+         return this._rows;
+      }//end rows
+
+      synchronized long finished () {
+         return this._finished;
+      }//end finished
+   }//end Progress
+
+   private final ConnectionPool _pool;
+   private final int _threads;
+   private final int _chunkRows;
+
+   public BulkLoader (ConnectionPool pool, int threads, int chunkRows) {
+      this._pool = pool;
+      this._threads = threads;
+      this._chunkRows = chunkRows;
+   }//end BulkLoader
+
+   /**
+    * Loads every table file found in dir, phase by phase.
+    *
+    * @param dir the directory holding the data files
+    * @return the number of rows loaded
+    */
+   public long load (File dir) throws Exception {
+      long total = 0;
+      for (Table[] phase : PHASES){
+         ExecutorService workers = Executors.newFixedThreadPool(this._threads);
+         // chunks read ahead of the workers, bounds the memory used
+         Semaphore inFlight = new Semaphore(this._threads * 2);
+         AtomicReference<Exception> failure = new AtomicReference<Exception>();
+         List<Progress> loaded = new ArrayList<Progress>();
+         List<Table> tables = new ArrayList<Table>();
+         long start = System.nanoTime();
+         try{
+            // one reader per table, the chunks of all tables share the workers
+            List<Thread> readers = new ArrayList<Thread>();
+            for (final Table table : phase){
+               final File file = new File(dir, table.file);
+               if (!file.exists()){
+                  System.out.println(table.name + ": " + file + " not found, skipped");
+                  continue;
+               }//end if
+               Progress rows = new Progress(start);
+               loaded.add(rows);
+               tables.add(table);
+               Thread reader = new Thread(new Reader(table, file, workers, inFlight, rows, failure),
+                                          "BulkLoader-" + table.name);
+               reader.start();
+               readers.add(reader);
+            }//end for
+            for (Thread reader : readers)
+               reader.join();
+         }finally{
+            workers.shutdown();
+            workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+         }//end try
+         if (failure.get() != null)
+            throw failure.get();
+
+         // each table is timed up to its own last chunk, not the phase's
+         for (int i = 0; i < tables.size(); ++i){
+            long rows = loaded.get(i).rows();
+            double seconds = (loaded.get(i).finished() - start) / 1e9;
+            total += rows;
+            System.out.println(String.format("%-20s %12d rows  %8.1f s  %10.0f rows/s",
+                  tables.get(i).name, rows, seconds, rows / Math.max(seconds, 1e-9)));
+         }//end for
+      }//end for
+      return total;
+   }//end load
+
+   /**
+    * Reads one table file and hands it to the workers in chunks.
+    */
+   private class Reader implements Runnable {
+      private final Table _table;
+      private final File _file;
+      private final ExecutorService _workers;
+      private final Semaphore _inFlight;
+      private final Progress _rows;
+      private final AtomicReference<Exception> _failure;
+
+      Reader (Table table, File file, ExecutorService workers, Semaphore inFlight,
+              Progress rows, AtomicReference<Exception> failure) {
+         this._table = table;
+         this._file = file;
+         this._workers = workers;
+         this._inFlight = inFlight;
+         this._rows = rows;
+         this._failure = failure;
+      }
+
+      public void run () {
+         try{
+            BufferedReader in = new BufferedReader(
+                  new InputStreamReader(new FileInputStream(this._file), "UTF-8"), 1 << 16);
+            try{
+               List<String[]> chunk = new ArrayList<String[]>(_chunkRows);
+               String line;
+               long lineNo = 0;
+               while ((line = in.readLine()) != null && this._failure.get() == null){
+                  ++lineNo;
+                  if (line.isEmpty())
+                     continue;
+                  String[] values = parse(line);
+                  if (values.length != this._table.columns.length)
+                     throw new IOException(this._file + ":" + lineNo + ": expected "
+                           + this._table.columns.length + " columns, found " + values.length);
+                  chunk.add(values);
+                  if (chunk.size() == _chunkRows){
+                     submit(chunk);
+                     chunk = new ArrayList<String[]>(_chunkRows);
+                  }//end if
+               }//end while
+               if (!chunk.isEmpty())
+                  submit(chunk);
+            }finally{
+               in.close();
+            }//end try
+         }catch (Exception e){
+            this._failure.compareAndSet(null, e);
+         }//end try
+      }//end run
+
+      private void submit (final List<String[]> chunk) throws InterruptedException {
+         this._inFlight.acquire();
+         this._workers.execute(new Runnable() {
+            public void run () {
+               try{
+                  if (_failure.get() == null)
+                     _rows.add(insert(_table, chunk));
+               }catch (Exception e){
+                  _failure.compareAndSet(null, e);
+               }finally{
+                  _inFlight.release();
+               }//end try
+            }
+         });
+      }//end submit
+   }//end Reader
+
+   /**
+    * Inserts one chunk of rows in a single transaction.
+    *
+    * @return the number of rows inserted
+    */
+   int insert (Table table, List<String[]> chunk) throws SQLException {
+      ConnectionPool.PooledConnection conn = this._pool.borrow();
+      try{
+         conn.getConnection().setAutoCommit(false);
+         for (int from = 0; from < chunk.size(); from += ROWS_PER_INSERT){
+            int rows = Math.min(ROWS_PER_INSERT, chunk.size() - from);
+            PreparedStatement stmt = conn.prepare(table.insert(rows));
+            int index = 1;
+            for (int r = from; r < from + rows; ++r){
+               for (String value : chunk.get(r)){
+                  if (value == null)
+                     stmt.setNull(index++, Types.VARCHAR);
+                  else
+                     stmt.setString(index++, value);
+               }//end for
+            }//end for
+            stmt.executeUpdate();
+         }//end for
+         conn.getConnection().commit();
+         conn.getConnection().setAutoCommit(true);
+         return chunk.size();
+      }finally{
+         // release rolls back a transaction left open by a failure.
+         this._pool.release(conn);
+      }//end try
+   }//end insert
+
+   /**
+    * Splits a line in the COPY text format into its column values,
+    * turning \N into null and undoing backslash escapes.
+    */
+   static String[] parse (String line) {
+      String[] fields = line.split("\t", -1);
+      for (int i = 0; i < fields.length; ++i){
+         String field = fields[i];
+         if (field.equals("\\N")){
+            fields[i] = null;
+            continue;
+         }//end if
+         if (field.indexOf('\\') < 0)
+            continue;
+         StringBuilder value = new StringBuilder(field.length());
+         for (int j = 0; j < field.length(); ++j){
+            char c = field.charAt(j);
+            if (c != '\\' || j + 1 == field.length()){
+               value.append(c);
+               continue;
+            }//end if
+            char e = field.charAt(++j);
+            switch (e){
+               case 't': value.append('\t'); break;
+               case 'n': value.append('\n'); break;
+               case 'r': value.append('\r'); break;
+               case 'b': value.append('\b'); break;
+               case 'f': value.append('\f'); break;
+               case 'v': value.append('\u000b'); break;
+               default: value.append(e); break;
+            }//end switch
+         }//end for
+         fields[i] = value.toString();
+      }//end for
+      return fields;
+   }//end parse
+
+   /**
+    * Runs a script of SQL statements separated by semicolons, such as
+    * create_index.sql.  Comments and psql meta commands are skipped.
+    */
+   void runScript (String script) throws SQLException {
+      ConnectionPool.PooledConnection conn = this._pool.borrow();
+      try{
+         Statement stmt = conn.getConnection().createStatement();
+         try{
+            for (String sql : statements(script))
+               stmt.execute(sql);
+         }finally{
+            stmt.close();
+         }//end try
+      }finally{
+         this._pool.release(conn);
+      }//end try
+   }//end runScript
+
+   /**
+    * Splits a script on the semicolons outside of quoted strings, so the
+    * dollar-quoted function bodies of triggers.sql stay whole.
+    */
+   static List<String> statements (String script) {
+      List<String> sqls = new ArrayList<String>();
+      StringBuilder sql = new StringBuilder();
+      Matcher dollar = DOLLAR_QUOTE.matcher(script);
+      int len = script.length();
+      int i = 0;
+      while (i < len){
+         char c = script.charAt(i);
+         boolean lineStart = i == 0 || script.charAt(i - 1) == '\n';
+         if (c == '\''){
+            int end = script.indexOf('\'', i + 1);
+            while (end >= 0 && end + 1 < len && script.charAt(end + 1) == '\'')
+               end = script.indexOf('\'', end + 2);
+            end = end < 0 ? len : end + 1;
+            sql.append(script, i, end);
+            i = end;
+         }else if (c == '$' && dollar.region(i, len).lookingAt()){
+            String tag = dollar.group();
+            int end = script.indexOf(tag, dollar.end());
+            end = end < 0 ? len : end + tag.length();
+            sql.append(script, i, end);
+            i = end;
+         }else if ((c == '-' && script.startsWith("--", i)) || (c == '\\' && lineStart)){
+            int end = script.indexOf('\n', i);
+            i = end < 0 ? len : end;
+         }else if (c == '/' && script.startsWith("/*", i)){
+            int end = script.indexOf("*/", i + 2);
+            i = end < 0 ? len : end + 2;
+         }else if (c == ';'){
+            if (sql.toString().trim().length() > 0)
+               sqls.add(sql.toString().trim());
+            sql.setLength(0);
+            ++i;
+         }else{
+            sql.append(c);
+            ++i;
+         }//end if
+      }//end while
+      if (sql.toString().trim().length() > 0)
+         sqls.add(sql.toString().trim());
+      return sqls;
+   }//end statements
+
+   /**
+    * Enables or disables the user triggers of every loaded table.
+    */
+   void setTriggers (boolean enabled) throws SQLException {
+      StringBuilder script = new StringBuilder();
+      for (Table[] phase : PHASES)
+         for (Table table : phase)
+            script.append("ALTER TABLE ").append(table.name)
+                  .append(enabled ? " ENABLE" : " DISABLE").append(" TRIGGER USER;\n");
+      runScript(script.toString());
+   }//end setTriggers
+
+   /**
+    * @return DROP INDEX statements for every index created by the script
+    */
+   static String dropIndexes (String script) {
+      StringBuilder drops = new StringBuilder();
+      Matcher m = Pattern.compile("(?i)CREATE\\s+(?:UNIQUE\\s+)?INDEX\\s+(\\w+)").matcher(script);
+      while (m.find())
+         drops.append("DROP INDEX IF EXISTS ").append(m.group(1)).append(";\n");
+      return drops.toString();
+   }//end dropIndexes
+
+   static String readFile (String path) throws IOException {
+      StringBuilder text = new StringBuilder();
+      BufferedReader in = new BufferedReader(new FileReader(path));
+      try{
+         String line;
+         while ((line = in.readLine()) != null)
+            text.append(line).append('\n');
+      }finally{
+         in.close();
+      }//end try
+      return text.toString();
+   }//end readFile
+
+   /**
+    * The main execution method
+    *
+    * @param args <dbname> <port> <user> <dataDir> [-threads N] [-chunk ROWS] [-rebuildIndexes create_index.sql]
+    *             [-triggers triggers.sql]
+    */
+   public static void main (String[] args) {
+      if (args.length < 4) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            BulkLoader.class.getName () +
+            " <dbname> <port> <user> <dataDir> [-threads N] [-chunk ROWS] [-rebuildIndexes <create_index.sql>]" +
+            " [-triggers <triggers.sql>]");
+         System.exit(1);
+      }//end if
+      int threads = Runtime.getRuntime().availableProcessors();
+      int chunk = 5000;
+      String indexScript = null;
+      String triggerScript = null;
+      for (int i = 4; i + 1 < args.length; i += 2){
+         if (args[i].equals("-threads"))
+            threads = Integer.parseInt(args[i + 1]);
+         else if (args[i].equals("-chunk"))
+            chunk = Integer.parseInt(args[i + 1]);
+         else if (args[i].equals("-rebuildIndexes"))
+            indexScript = args[i + 1];
+         else if (args[i].equals("-triggers"))
+            triggerScript = args[i + 1];
+      }//end for
+
+      ConnectionPool pool = null;
+      try{
+         Class.forName ("org.postgresql.Driver").newInstance ();
+         String url = "jdbc:postgresql://localhost:" + args[1] + "/" + args[0];
+         pool = new ConnectionPool(url, args[2], "", 1, threads, 60000L, 600000L, 5000L);
+         System.exit(run(pool, threads, chunk, new File(args[3]), indexScript, triggerScript) ? 0 : 1);
+      }catch (Exception e){
+         System.err.println ("Load failed: " + e.getMessage ());
+         System.exit(1);
+      }finally{
+         if (pool != null)
+            pool.close();
+      }//end try
+   }//end main
+
+   /**
+    * Loads a data directory with the user triggers disabled, dropping and
+    * rebuilding the indexes of indexScript around the load when it is
+    * given.  triggerScript, when given, is run afterwards to count the
+    * loaded rows.  The indexes and triggers are restored in any case.
+    *
+    * @return true when every table was loaded
+    */
+   public static boolean run (ConnectionPool pool, int threads, int chunk, File dir,
+                              String indexScript, String triggerScript) throws Exception {
+      BulkLoader loader = new BulkLoader(pool, threads, chunk);
+      String script = indexScript == null ? null : readFile(indexScript);
+      String triggers = triggerScript == null ? null : readFile(triggerScript);
+      boolean loaded = false;
+      try{
+         loader.setTriggers(false);
+         if (script != null){
+            System.out.println("Dropping indexes of " + indexScript);
+            loader.runScript(dropIndexes(script));
+         }//end if
+
+         long start = System.nanoTime();
+         long rows = loader.load(dir);
+         double seconds = (System.nanoTime() - start) / 1e9;
+         System.out.println(String.format("%-20s %12d rows  %8.1f s  %10.0f rows/s",
+               "total", rows, seconds, rows / Math.max(seconds, 1e-9)));
+
+         // continue numbering new messages after the loaded ones
+         loader.runScript("SELECT setval('message_msgid_seq', COALESCE(MAX(msgId), 0) + 1, false) FROM MESSAGE");
+         loaded = true;
+      }finally{
+         try{
+            loader.setTriggers(true);
+            if (script != null){
+               System.out.println("Rebuilding indexes of " + indexScript);
+               long start = System.nanoTime();
+               loader.runScript(script);
+               System.out.println(String.format("Indexes rebuilt in %.1f s", (System.nanoTime() - start) / 1e9));
+            }//end if
+            if (triggers != null){
+               System.out.println("Counting the loaded rows with " + triggerScript);
+               loader.runScript(triggers);
+            }else
+               System.out.println("USR_STATS and CONVERSATION do not include the loaded rows until triggers.sql is run");
+         }catch (SQLException e){
+            // do not hide the failure of the load itself
+            if (loaded)
+               throw e;
+            System.err.println("Restoring after the failed load: " + e.getMessage());
+         }//end try
+      }//end try
+      return true;
+   }//end run
+}//end BulkLoader
@@ -0,0 +1,389 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ * Group #52
+ */
+
+
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import org.postgresql.PGStatement;
+
+/**
+ * This class keeps a bounded set of physical database connections that are
+ * borrowed by the ProfNetwork helper methods for the duration of a single
+ * statement (or transaction) and returned afterwards.
+ *
+ * The pool holds at least minSize and at most maxSize connections.  Idle
+ * connections above minSize are closed once they have been unused for
+ * idleTimeout milliseconds, connections that sat idle are validated before
+ * they are handed out, and the time callers spend waiting for a connection
+ * is recorded.
+ */
+public class ConnectionPool {
+
+   /**
+    * A physical connection together with the statements prepared on it.
+    * Prepared statements belong to a connection, so each pooled connection
+    * keeps its own statement cache keyed by the SQL text.
+    */
+   public static class PooledConnection {
+      private final Connection _connection;
+      private final Map<String, PreparedStatement> _statements = new HashMap<String, PreparedStatement>();
+      private long _lastUsed = System.currentTimeMillis ();
+      // the pool's statement generation the cache was filled under.
+      private int _generation;
+
+      PooledConnection (Connection connection) {
+         this._connection = connection;
+      }
+
+      public Connection getConnection () {
+         return this._connection;
+      }
+
+      /**
+       * Returns the cached statement for the SQL text, preparing it the
+       * first time the query shape is seen on this connection.
+       *
+       * @param sql the SQL string with '?' placeholders
+       * @return the prepared statement with its parameters cleared
+       * @throws java.sql.SQLException when the statement could not be prepared
+       */
+      public PreparedStatement prepare (String sql) throws SQLException {
+         PreparedStatement stmt = this._statements.get (sql);
+         if (stmt == null){
+            stmt = this._connection.prepareStatement (sql);
+            // ask the driver to keep the plan on the server side.
+            if (stmt instanceof PGStatement)
+               ((PGStatement) stmt).setUseServerPrepare (true);
+            this._statements.put (sql, stmt);
+         }//end if
+         stmt.clearParameters ();
+         return stmt;
+      }//end prepare
+
+      /**
+       * Closes every cached statement, so the next use of each query shape
+       * prepares it again against the current schema.
+       */
+      void clearStatements () {
+         for (PreparedStatement stmt : this._statements.values ()){
+            try{
+               stmt.close ();
+            }catch (SQLException e){
+               // ignored.
+            }//end try
+         }//end for
+         this._statements.clear ();
+      }//end clearStatements
+
+      void close () {
+         clearStatements ();
+         try{
+            this._connection.close ();
+         }catch (SQLException e){
+            // ignored.
+         }//end try
+      }//end close
+   }//end PooledConnection
+
+   private final String _url;
+   private final String _user;
+   private final String _passwd;
+   private final int _minSize;
+   private final int _maxSize;
+   private final long _idleTimeout;
+   private final long _maxWait;
+   private final long _validateAfter;
+
+   // idle connections, most recently returned first.
+   private final LinkedList<PooledConnection> _idle = new LinkedList<PooledConnection>();
+   // number of connections opened and not yet closed, idle or borrowed.
+   private int _total = 0;
+   private boolean _closed = false;
+   private final Timer _evictor;
+   // bumped by invalidateStatements, each connection clears its statement
+   // cache the next time it is borrowed under a newer generation.
+   private int _generation = 0;
+
+   // wait time metrics
+   private long _borrows = 0;
+   private long _waits = 0;
+   private long _timeouts = 0;
+   private long _totalWaitNanos = 0;
+   private long _maxWaitNanos = 0;
+   private long _validationFailures = 0;
+   private long _evictions = 0;
+
+   /**
+    * Creates a new pool and opens its first minSize connections.
+    *
+    * @param url the JDBC connection URL
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    * @param minSize the number of connections kept open even when idle
+    * @param maxSize the largest number of connections ever opened at once
+    * @param idleTimeout milliseconds after which an idle connection above minSize is closed
+    * @param maxWait milliseconds a caller waits for a connection before giving up
+    * @param validateAfter milliseconds of idleness after which a connection is validated on borrow
+    * @throws java.sql.SQLException when the initial connections could not be made
+    */
+   public ConnectionPool (String url, String user, String passwd, int minSize, int maxSize,
+                          long idleTimeout, long maxWait, long validateAfter) throws SQLException {
+      if (minSize < 0 || maxSize < 1 || minSize > maxSize)
+         throw new IllegalArgumentException ("Invalid pool size " + minSize + ".." + maxSize);
+      this._url = url;
+      this._user = user;
+      this._passwd = passwd;
+      this._minSize = minSize;
+      this._maxSize = maxSize;
+      this._idleTimeout = idleTimeout;
+      this._maxWait = maxWait;
+      this._validateAfter = validateAfter;
+
+      for (int i = 0; i < minSize; ++i){
+         this._idle.add (open ());
+         ++this._total;
+      }//end for
+
+      this._evictor = new Timer ("ConnectionPool-evictor", true);
+      long period = Math.max (1000, idleTimeout / 2);
+      this._evictor.schedule (new TimerTask () {
+         public void run () { evictIdle (); }
+      }, period, period);
+   }//end ConnectionPool
+
+   private PooledConnection open () throws SQLException {
+      return new PooledConnection (DriverManager.getConnection (this._url, this._user, this._passwd));
+   }//end open
+
+   /**
+    * Borrows a connection, waiting at most maxWait milliseconds when all
+    * maxSize connections are in use.  The connection must be handed back
+    * through release.
+    *
+    * @return a validated connection
+    * @throws java.sql.SQLException when no connection became available in time
+    */
+   public PooledConnection borrow () throws SQLException {
+      long start = System.nanoTime ();
+      long deadline = start + this._maxWait * 1000000L;
+      boolean waited = false;
+      while (true){
+         PooledConnection conn = null;
+         boolean create = false;
+         int generation;
+         synchronized (this){
+            while (!this._closed && this._idle.isEmpty () && this._total >= this._maxSize){
+               long remaining = deadline - System.nanoTime ();
+               if (remaining <= 0){
+                  ++this._timeouts;
+                  throw new SQLException ("Timed out waiting for a database connection");
+               }//end if
+               waited = true;
+               try{
+                  this.wait (remaining / 1000000L + 1);
+               }catch (InterruptedException e){
+                  Thread.currentThread ().interrupt ();
+                  throw new SQLException ("Interrupted waiting for a database connection");
+               }//end try
+            }//end while
+            if (this._closed)
+               throw new SQLException ("Connection pool is closed");
+            if (!this._idle.isEmpty ())
+               conn = this._idle.removeFirst ();
+            else{
+               ++this._total;
+               create = true;
+            }//end if
+            generation = this._generation;
+         }//end synchronized
+
+         if (create){
+            try{
+               conn = open ();
+            }catch (SQLException e){
+               discard (null);
+               throw e;
+            }//end try
+         }//end if
+         if (conn._generation != generation){
+            conn.clearStatements ();
+            conn._generation = generation;
+         }//end if
+         if (!create && !validate (conn)){
+            discard (conn);
+            continue;
+         }//end if
+
+         recordBorrow (System.nanoTime () - start, waited);
+         return conn;
+      }//end while
+   }//end borrow
+
+   /**
+    * Returns a borrowed connection to the pool.  Connections that were
+    * closed while borrowed are dropped instead.
+    *
+    * @param conn the connection obtained from borrow
+    */
+   public void release (PooledConnection conn) {
+      if (conn == null)
+         return;
+      boolean usable;
+      try{
+         usable = !conn._connection.isClosed ();
+         if (usable && !conn._connection.getAutoCommit ()){
+            // a transaction was left open, do not leak it to the next caller.
+            conn._connection.rollback ();
+            conn._connection.setAutoCommit (true);
+         }//end if
+      }catch (SQLException e){
+         usable = false;
+      }//end try
+      if (!usable){
+         discard (conn);
+         return;
+      }//end if
+      conn._lastUsed = System.currentTimeMillis ();
+      synchronized (this){
+         if (!this._closed){
+            this._idle.addFirst (conn);
+            this.notify ();
+            return;
+         }//end if
+         --this._total;
+      }//end synchronized
+      conn.close ();
+   }//end release
+
+   /**
+    * Runs a trivial query on connections that have been idle for longer
+    * than validateAfter, so a connection dropped by the server is never
+    * handed to a caller.
+    */
+   private boolean validate (PooledConnection conn) {
+      if (System.currentTimeMillis () - conn._lastUsed < this._validateAfter)
+         return true;
+      try{
+         ResultSet rs = conn.prepare ("SELECT 1").executeQuery ();
+         rs.close ();
+         return true;
+      }catch (SQLException e){
+         synchronized (this){
+            ++this._validationFailures;
+         }
+         return false;
+      }//end try
+   }//end validate
+
+   /**
+    * Drops the prepared statements of every connection, idle or borrowed,
+    * before its next use.  Statements prepared before a change to the
+    * tables they read can fail with "cached plan must not change result
+    * type" once the change is made.
+    */
+   public synchronized void invalidateStatements () {
+      ++this._generation;
+   }//end invalidateStatements
+
+   private void discard (PooledConnection conn) {
+      synchronized (this){
+         --this._total;
+         this.notify ();
+      }
+      if (conn != null)
+         conn.close ();
+   }//end discard
+
+   private synchronized void recordBorrow (long waitNanos, boolean waited) {
+      ++this._borrows;
+      if (waited)
+         ++this._waits;
+      this._totalWaitNanos += waitNanos;
+      if (waitNanos > this._maxWaitNanos)
+         this._maxWaitNanos = waitNanos;
+   }//end recordBorrow
+
+   /**
+    * Closes idle connections above minSize that have not been used for
+    * idleTimeout milliseconds.  Runs periodically on the evictor thread.
+    */
+   void evictIdle () {
+      List<PooledConnection> evicted = new ArrayList<PooledConnection>();
+      long now = System.currentTimeMillis ();
+      synchronized (this){
+         // oldest connections are at the end of the idle list.
+         Iterator<PooledConnection> it = this._idle.descendingIterator ();
+         while (it.hasNext () && this._total > this._minSize){
+            PooledConnection conn = it.next ();
+            if (now - conn._lastUsed < this._idleTimeout)
+               break;
+            it.remove ();
+            --this._total;
+            ++this._evictions;
+            evicted.add (conn);
+         }//end while
+      }//end synchronized
+      for (PooledConnection conn : evicted)
+         conn.close ();
+   }//end evictIdle
+
+   /**
+    * Closes every idle connection and stops handing out new ones.
+    * Connections still borrowed are closed when they are released.
+    */
+   public void close () {
+      this._evictor.cancel ();
+      List<PooledConnection> idle;
+      synchronized (this){
+         this._closed = true;
+         idle = new ArrayList<PooledConnection>(this._idle);
+         this._total -= idle.size ();
+         this._idle.clear ();
+         this.notifyAll ();
+      }//end synchronized
+      for (PooledConnection conn : idle)
+         conn.close ();
+   }//end close
+
+   public synchronized int getTotal () { return this._total; }
+   public synchronized int getIdle () { return this._idle.size (); }
+   public synchronized long getBorrows () { return this._borrows; }
+   public synchronized long getWaits () { return this._waits; }
+   public synchronized long getTimeouts () { return this._timeouts; }
+   public synchronized long getEvictions () { return this._evictions; }
+   public synchronized long getValidationFailures () { return this._validationFailures; }
+   public synchronized long getTotalWaitMillis () { return this._totalWaitNanos / 1000000L; }
+   public synchronized long getMaxWaitMillis () { return this._maxWaitNanos / 1000000L; }
+
+   /**
+    * @return a one line summary of the pool size and wait time metrics
+    */
+   public synchronized String stats () {
+      double avgWait = this._borrows == 0 ? 0.0 : this._totalWaitNanos / 1e6 / this._borrows;
+      return String.format ("connections=%d idle=%d borrows=%d waits=%d timeouts=%d "
+                            + "avgWaitMs=%.3f maxWaitMs=%.3f evictions=%d validationFailures=%d",
+                            this._total, this._idle.size (), this._borrows, this._waits, this._timeouts,
+                            avgWait, this._maxWaitNanos / 1e6, this._evictions, this._validationFailures);
+   }//end stats
+}//end ConnectionPool
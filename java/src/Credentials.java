@@ -0,0 +1,321 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ * Group #52
+ */
+
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * This class checks login passwords against the salted hashes kept in
+ * USR.password.
+ *
+ * Passwords are stored as pbkdf2$iterations$salt$hash, with PBKDF2 over
+ * HMAC-SHA1 and a random salt per user.  Rows still holding a plain text
+ * password (loaded from the data files, or created before hashing) are
+ * accepted once and rewritten with a hash on that login.
+ *
+ * Checking a hash is deliberately slow, so successful checks are
+ * remembered in a bounded cache keyed by an HMAC of the user, the stored
+ * hash and the password under a key that only lives in this process.  A
+ * repeated login with the same password skips the hashing, and a changed
+ * password never matches an old entry.
+ *
+ * Failed logins are counted per userId.  After maxFailures failures within
+ * a window the user is locked out for lockoutMillis, during which login
+ * attempts are refused without touching the database.
+ */
+public class Credentials {
+
+   private static final String SCHEME = "pbkdf2";
+   private static final String ALGORITHM = "PBKDF2WithHmacSHA1";
+   private static final int SALT_BYTES = 16;
+   private static final int HASH_BITS = 160;
+
+   static final int ITERATIONS = Integer.getInteger("profnetwork.password.iterations", 20000);
+
+   static final String PASSWORD_QUERY = "SELECT password FROM USR WHERE userId = ?";
+   // replaces a plain text password only if it was not changed meanwhile
+   static final String UPGRADE_QUERY = "UPDATE USR SET password = ? WHERE userId = ? AND password = ?";
+   static final String CHANGE_QUERY = "UPDATE USR SET password = ? WHERE userId = ?";
+
+   /**
+    * Recent failures of one user.
+    */
+   private static class Failures {
+      long windowStart;
+      int count;
+      long lockedUntil;
+   }//end Failures
+
+   private static final SecureRandom RANDOM = new SecureRandom();
+
+   private final ProfNetwork _esql;
+   private final int _maxFailures;
+   private final long _windowMillis;
+   private final long _lockoutMillis;
+   private final SecretKeySpec _cacheKey;
+   private final LinkedHashMap<String, byte[]> _verified;
+   private final LinkedHashMap<String, Failures> _failures;
+
+   private final AtomicLong _hits = new AtomicLong();
+   private final AtomicLong _misses = new AtomicLong();
+   private final AtomicLong _rejected = new AtomicLong();
+   private final AtomicLong _upgraded = new AtomicLong();
+
+   /**
+    * @param esql the database access object
+    * @param cacheSize the largest number of remembered successful checks
+    * @param maxFailures failed logins allowed within windowMillis
+    * @param windowMillis the window failures are counted in
+    * @param lockoutMillis how long a user is locked out after too many failures
+    */
+   public Credentials (ProfNetwork esql, final int cacheSize, int maxFailures,
+                       long windowMillis, long lockoutMillis) {
+      this._esql = esql;
+      this._maxFailures = maxFailures;
+      this._windowMillis = windowMillis;
+      this._lockoutMillis = lockoutMillis;
+      byte[] key = new byte[32];
+      RANDOM.nextBytes(key);
+      this._cacheKey = new SecretKeySpec(key, "HmacSHA256");
+      this._verified = new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+         protected boolean removeEldestEntry (Map.Entry<String, byte[]> eldest) {
+            return size() > cacheSize;
+         }
+      };
+      // failure counters of the least recently failing users go first
+      this._failures = new LinkedHashMap<String, Failures>(16, 0.75f, true) {
+         protected boolean removeEldestEntry (Map.Entry<String, Failures> eldest) {
+            return size() > Math.max(cacheSize, 1000);
+         }
+      };
+   }//end Credentials
+
+   /**
+    * @return true while userId is locked out after too many failed logins
+    */
+   public boolean isLocked (String userId) {
+      synchronized (this._failures){
+         Failures f = this._failures.get(userId);
+         return f != null && f.lockedUntil > System.currentTimeMillis();
+      }//end synchronized
+   }//end isLocked
+
+   /**
+    * Checks a login.  Only the stored hash is read, by primary key.
+    *
+    * @return true if the password is the user's
+    * @throws java.sql.SQLException when the stored password could not be read
+    */
+   public boolean check (String userId, String password) throws SQLException {
+      if (userId == null || password == null)
+         return false;
+      if (isLocked(userId)){
+         this._rejected.incrementAndGet();
+         return false;
+      }//end if
+      List<List<String>> rows = this._esql.executeQueryAndReturnResult(PASSWORD_QUERY, userId);
+      String stored = rows.isEmpty() ? null : rows.get(0).get(0);
+      if (stored == null || !verify(userId, password, stored)){
+         failed(userId);
+         return false;
+      }//end if
+      succeeded(userId);
+      if (!isHashed(stored)){
+         // the row still holds the plain text password, replace it
+         if (this._esql.executeUpdate(UPGRADE_QUERY, hash(password), userId, stored) > 0)
+            this._upgraded.incrementAndGet();
+      }//end if
+      return true;
+   }//end check
+
+   /**
+    * Replaces a user's password after checking the current one.
+    *
+    * @return true if the current password was right and the password was changed
+    * @throws java.sql.SQLException when the password could not be read or written
+    */
+   public boolean change (String userId, String current, String password) throws SQLException {
+      if (!check(userId, current))
+         return false;
+      forget(userId);
+      return this._esql.executeUpdate(CHANGE_QUERY, hash(password), userId) > 0;
+   }//end change
+
+   /**
+    * Drops the remembered check of a user.
+    */
+   public void forget (String userId) {
+      synchronized (this._verified){
+         this._verified.remove(userId);
+      }
+   }//end forget
+
+   /**
+    * Checks a password against a stored value, through the cache of
+    * recent successful checks.
+    */
+   boolean verify (String userId, String password, String stored) {
+      byte[] token = token(userId, stored, password);
+      synchronized (this._verified){
+         byte[] known = this._verified.get(userId);
+         if (known != null && MessageDigest.isEqual(known, token)){
+            this._hits.incrementAndGet();
+            return true;
+         }//end if
+      }//end synchronized
+      this._misses.incrementAndGet();
+      if (!matches(password, stored))
+         return false;
+      synchronized (this._verified){
+         this._verified.put(userId, token);
+      }
+      return true;
+   }//end verify
+
+   private void failed (String userId) {
+      long now = System.currentTimeMillis();
+      synchronized (this._failures){
+         Failures f = this._failures.get(userId);
+         if (f == null){
+            f = new Failures();
+            this._failures.put(userId, f);
+         }//end if
+         if (now - f.windowStart > this._windowMillis){
+            f.windowStart = now;
+            f.count = 0;
+         }//end if
+         if (++f.count >= this._maxFailures){
+            f.lockedUntil = now + this._lockoutMillis;
+            f.count = 0;
+         }//end if
+      }//end synchronized
+   }//end failed
+
+   private void succeeded (String userId) {
+      synchronized (this._failures){
+         this._failures.remove(userId);
+      }
+   }//end succeeded
+
+   private byte[] token (String userId, String stored, String password) {
+      try{
+         Mac mac = Mac.getInstance("HmacSHA256");
+         mac.init(this._cacheKey);
+         mac.update(userId.getBytes("UTF-8"));
+         mac.update((byte) 0);
+         mac.update(stored.getBytes("UTF-8"));
+         mac.update((byte) 0);
+         return mac.doFinal(password.getBytes("UTF-8"));
+      }catch (Exception e){
+         throw new IllegalStateException("HmacSHA256 is not available", e);
+      }//end try
+   }//end token
+
+   /**
+    * @return true if stored is a hash made by hash, not a plain text password
+    */
+   public static boolean isHashed (String stored) {
+      return stored != null && stored.startsWith(SCHEME + "$");
+   }
+
+   /**
+    * Hashes a password with a new random salt.
+    *
+    * @return the value to store in USR.password
+    */
+   public static String hash (String password) {
+      byte[] salt = new byte[SALT_BYTES];
+      RANDOM.nextBytes(salt);
+      return SCHEME + "$" + ITERATIONS + "$" + hex(salt) + "$" + hex(pbkdf2(password, salt, ITERATIONS));
+   }//end hash
+
+   /**
+    * Compares a password with a stored hash, or with a plain text
+    * password left from before hashing.
+    */
+   static boolean matches (String password, String stored) {
+      if (!isHashed(stored))
+         return MessageDigest.isEqual(bytes(password), bytes(stored));
+      String[] parts = stored.split("\\$");
+      if (parts.length != 4)
+         return false;
+      try{
+         int iterations = Integer.parseInt(parts[1]);
+         byte[] expected = unhex(parts[3]);
+         return MessageDigest.isEqual(expected, pbkdf2(password, unhex(parts[2]), iterations));
+      }catch (NumberFormatException e){
+         return false;
+      }//end try
+   }//end matches
+
+   private static byte[] pbkdf2 (String password, byte[] salt, int iterations) {
+      try{
+         PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+         return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+      }catch (GeneralSecurityException e){
+         throw new IllegalStateException(ALGORITHM + " is not available", e);
+      }//end try
+   }//end pbkdf2
+
+   private static byte[] bytes (String text) {
+      try{
+         return text.getBytes("UTF-8");
+      }catch (java.io.UnsupportedEncodingException e){
+         throw new IllegalStateException(e);
+      }//end try
+   }//end bytes
+
+   private static String hex (byte[] data) {
+      StringBuilder text = new StringBuilder(data.length * 2);
+      for (byte b : data)
+         text.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+      return text.toString();
+   }//end hex
+
+   private static byte[] unhex (String text) {
+      if (text.length() % 2 != 0)
+         throw new NumberFormatException("odd length");
+      byte[] data = new byte[text.length() / 2];
+      for (int i = 0; i < data.length; ++i)
+         data[i] = (byte) Integer.parseInt(text.substring(2 * i, 2 * i + 2), 16);
+      return data;
+   }//end unhex
+
+   public long getHits () { return this._hits.get(); }
+   public long getMisses () { return this._misses.get(); }
+   public long getRejected () { return this._rejected.get(); }
+   public long getUpgraded () { return this._upgraded.get(); }
+
+   /**
+    * @return a one line summary of the verification cache and lockouts
+    */
+   public String stats () {
+      int cached;
+      synchronized (this._verified){
+         cached = this._verified.size();
+      }
+      return String.format("cached=%d hits=%d misses=%d lockedOutAttempts=%d upgraded=%d",
+                           cached, getHits(), getMisses(), getRejected(), getUpgraded());
+   }//end stats
+}//end Credentials
@@ -0,0 +1,380 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ * Group #52
+ */
+
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.TimeZone;
+
+/**
+ * This class writes a synthetic dataset in the tab-delimited format read
+ * by load_data.sql and BulkLoader: USR.txt, Work_Ex.txt, Edu_Det.txt,
+ * Connection.txt and Message.txt.
+ *
+ * The output only depends on the options and the seed.  Each file draws
+ * from its own random generator, so changing the message volume does not
+ * change the users or the connections.  Every file is written row by row
+ * and nothing is kept per user beyond the current one, so memory stays
+ * bounded whatever the number of users or messages.
+ *
+ * The number of connections a user starts follows a power law (a discrete
+ * Pareto distribution with exponent alpha), so a few users are very well
+ * connected and most have a handful of friends.  A user only starts
+ * connections to users with a higher index, which rules out duplicate and
+ * reciprocal pairs without remembering earlier users.  Message counts per
+ * user are exponentially distributed around the given average.
+ */
+public class DataGenerator {
+
+   private static final String[] FIRST = {
+      "James", "Mary", "John", "Patricia", "Robert", "Jennifer", "Michael", "Linda", "David", "Elizabeth",
+      "William", "Barbara", "Richard", "Susan", "Joseph", "Jessica", "Thomas", "Sarah", "Wei", "Mei",
+      "Carlos", "Maria", "Ahmed", "Fatima", "Hiroshi", "Yuki", "Ivan", "Olga", "Raj", "Priya"
+   };
+   private static final String[] LAST = {
+      "Smith", "Johnson", "Williams", "Brown", "Jones", "Garcia", "Miller", "Davis", "Rodriguez", "Martinez",
+      "Hernandez", "Lopez", "Gonzalez", "Wilson", "Anderson", "Lee", "Nguyen", "Kim", "Chen", "Patel",
+      "Singh", "Khan", "Tanaka", "Ivanov", "Muller", "Rossi", "Silva", "Cohen", "OConnor", "Walker"
+   };
+   private static final String[] COMPANIES = {
+      "Google", "Microsoft", "Amazon", "Apple", "Oracle", "Intel", "IBM", "Cisco", "Qualcomm", "Netflix",
+      "Adobe", "Salesforce", "Facebook", "Twitter", "LinkedIn", "Uber", "Tesla", "SpaceX", "Boeing", "Disney"
+   };
+   private static final String[] ROLES = {
+      "Software Engineer", "Senior Engineer", "Manager", "Data Scientist", "Analyst",
+      "Designer", "Intern", "Director", "Consultant", "Researcher"
+   };
+   private static final String[] LOCATIONS = {
+      "Riverside", "Los Angeles", "San Francisco", "Seattle", "New York",
+      "Austin", "Boston", "Chicago", "San Diego", "Irvine"
+   };
+   private static final String[] INSTITUTIONS = {
+      "UC Riverside", "UC Los Angeles", "UC Berkeley", "UC San Diego", "UC Irvine",
+      "Stanford", "MIT", "Caltech", "USC", "Cal Poly Pomona"
+   };
+   private static final String[] MAJORS = {
+      "Computer Science", "Computer Engineering", "Electrical Engineering", "Mathematics", "Physics",
+      "Biology", "Economics", "Business", "Chemistry", "Statistics"
+   };
+   // a user holds at most one record per degree, the table key is (userId, major, degree)
+   private static final String[] DEGREES = { "BS", "MS", "PhD", "MBA", "BA", "MA" };
+   private static final String[] WORDS = {
+      "hello", "meeting", "project", "tomorrow", "thanks", "lunch", "code", "review", "database",
+      "query", "deadline", "great", "job", "interview", "call", "me", "when", "you", "are", "free",
+      "the", "a", "and", "see", "soon", "update", "please", "check", "this", "out"
+   };
+
+   private final long _seed;
+   private final int _users;
+   private final double _alpha;
+   private final int _minDegree;
+   private final int _maxDegree;
+   private final double _messages;
+   private final int _work;
+   private final int _education;
+
+   // 2010-01-01 00:00:00 UTC, message times are spread over the following years
+   private static final long EPOCH_MILLIS = 1262304000000L;
+   private static final long DAY_MILLIS = 86400000L;
+
+   // times are written in UTC so the files do not depend on the local time zone
+   private final SimpleDateFormat _dayFormat = utc("yyyy-MM-dd");
+   private final SimpleDateFormat _timeFormat = utc("yyyy-MM-dd HH:mm:ss.SSS");
+
+   /**
+    * @param seed the seed every file is derived from
+    * @param users the number of users
+    * @param alpha the power law exponent of the connection counts, above 1
+    * @param minDegree the smallest number of connections a user starts
+    * @param maxDegree the largest number of connections a user starts
+    * @param messages the average number of messages a user sends
+    * @param work the largest number of work records per user
+    * @param education the largest number of education records per user
+    */
+   public DataGenerator (long seed, int users, double alpha, int minDegree, int maxDegree,
+                         double messages, int work, int education) {
+      if (alpha <= 1.0)
+         throw new IllegalArgumentException("alpha must be above 1");
+      this._seed = seed;
+      this._users = users;
+      this._alpha = alpha;
+      this._minDegree = minDegree;
+      this._maxDegree = Math.max(minDegree, maxDegree);
+      this._messages = messages;
+      this._work = work;
+      this._education = Math.min(education, DEGREES.length);
+   }//end DataGenerator
+
+   static String userId (int i) {
+      return String.format("user%08d", i);
+   }
+
+   /**
+    * Writes all five files into dir.
+    *
+    * @return the number of rows written
+    */
+   public long write (File dir) throws IOException {
+      if (!dir.isDirectory() && !dir.mkdirs())
+         throw new IOException("Cannot create " + dir);
+      long rows = 0;
+      rows += timed("USR", new File(dir, "USR.txt"), 1);
+      rows += timed("WORK_EXPR", new File(dir, "Work_Ex.txt"), 2);
+      rows += timed("EDUCATIONAL_DETAILS", new File(dir, "Edu_Det.txt"), 3);
+      rows += timed("CONNECTION_USR", new File(dir, "Connection.txt"), 4);
+      rows += timed("MESSAGE", new File(dir, "Message.txt"), 5);
+      return rows;
+   }//end write
+
+   private long timed (String table, File file, int part) throws IOException {
+      long start = System.nanoTime();
+      Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"), 1 << 16);
+      long rows;
+      try{
+         // each file gets its own generator, derived from the seed
+         Random random = new Random(this._seed * 31 + part);
+         switch (part){
+            case 1: rows = writeUsers(out, random); break;
+            case 2: rows = writeWork(out, random); break;
+            case 3: rows = writeEducation(out, random); break;
+            case 4: rows = writeConnections(out, random); break;
+            default: rows = writeMessages(out, random); break;
+         }//end switch
+      }finally{
+         out.close();
+      }//end try
+      double seconds = (System.nanoTime() - start) / 1e9;
+      System.out.println(String.format("%-20s %12d rows  %8.1f s  %10.0f rows/s",
+            table, rows, seconds, rows / Math.max(seconds, 1e-9)));
+      return rows;
+   }//end timed
+
+   // userId, password, email, name, dateOfBirth
+   private long writeUsers (Writer out, Random random) throws IOException {
+      for (int i = 0; i < this._users; ++i){
+         String id = userId(i);
+         row(out, id, "pw" + Integer.toHexString(random.nextInt()), id + "@example.com",
+             pick(random, FIRST) + " " + pick(random, LAST),
+             date(random, 1950, 50));
+      }//end for
+      return this._users;
+   }//end writeUsers
+
+   // userId, company, role, location, startDate, endDate
+   private long writeWork (Writer out, Random random) throws IOException {
+      long rows = 0;
+      for (int i = 0; i < this._users; ++i){
+         int records = random.nextInt(this._work + 1);
+         // consecutive jobs, the last one may still be held
+         long day = random.nextInt(3650);
+         for (int k = 0; k < records; ++k){
+            long end = day + 180 + random.nextInt(1500);
+            boolean current = k == records - 1 && random.nextBoolean();
+            row(out, userId(i), pick(random, COMPANIES), pick(random, ROLES), pick(random, LOCATIONS),
+                day(day), current ? null : day(end));
+            day = end + 1 + random.nextInt(90);
+            ++rows;
+         }//end for
+      }//end for
+      return rows;
+   }//end writeWork
+
+   // userId, instituitionName, major, degree, startdate, enddate
+   private long writeEducation (Writer out, Random random) throws IOException {
+      long rows = 0;
+      for (int i = 0; i < this._users; ++i){
+         int records = random.nextInt(this._education + 1);
+         long day = random.nextInt(3650);
+         for (int k = 0; k < records; ++k){
+            long end = day + 365 * (2 + random.nextInt(3));
+            row(out, userId(i), pick(random, INSTITUTIONS), pick(random, MAJORS), DEGREES[k],
+                day(day), day(end));
+            day = end + 30 + random.nextInt(365);
+            ++rows;
+         }//end for
+      }//end for
+      return rows;
+   }//end writeEducation
+
+   // userId, connectionId, status
+   private long writeConnections (Writer out, Random random) throws IOException {
+      long rows = 0;
+      Set<Integer> targets = new HashSet<Integer>();
+      for (int i = 0; i < this._users; ++i){
+         int higher = this._users - 1 - i;
+         int degree = Math.min(degree(random), higher);
+         targets.clear();
+         while (targets.size() < degree){
+            int j = i + 1 + random.nextInt(higher);
+            if (!targets.add(j))
+               continue;
+            double status = random.nextDouble();
+            row(out, userId(i), userId(j), status < 0.8 ? "Accept" : status < 0.95 ? "Request" : "Reject");
+            ++rows;
+         }//end while
+      }//end for
+      return rows;
+   }//end writeConnections
+
+   // msgId, senderId, receiverId, contents, sendTime, deleteStatus, status
+   private long writeMessages (Writer out, Random random) throws IOException {
+      long rows = 0;
+      if (this._users < 2)
+         return rows;
+      StringBuilder contents = new StringBuilder();
+      for (int i = 0; i < this._users; ++i){
+         long count = Math.round(-Math.log(1.0 - random.nextDouble()) * this._messages);
+         long time = EPOCH_MILLIS + (long) (random.nextDouble() * 1000 * DAY_MILLIS);
+         for (long m = 0; m < count; ++m){
+            int to = random.nextInt(this._users - 1);
+            if (to >= i)
+               ++to;
+            contents.setLength(0);
+            int words = 3 + random.nextInt(20);
+            for (int w = 0; w < words; ++w)
+               contents.append(w == 0 ? "" : " ").append(pick(random, WORDS));
+            time += 1000 + (long) (random.nextDouble() * DAY_MILLIS);
+            double delete = random.nextDouble();
+            int deleteStatus = delete < 0.9 ? 0 : delete < 0.95 ? 1 : delete < 0.98 ? 2 : 3;
+            ++rows;
+            row(out, Long.toString(rows), userId(i), userId(to), contents.toString(),
+                this._timeFormat.format(new Date(time)), Integer.toString(deleteStatus),
+                random.nextDouble() < 0.7 ? "Delivered" : "Sent");
+         }//end for
+      }//end for
+      return rows;
+   }//end writeMessages
+
+   /**
+    * Draws from a discrete Pareto distribution between minDegree and maxDegree.
+    */
+   int degree (Random random) {
+      double u = 1.0 - random.nextDouble();
+      double d = this._minDegree * Math.pow(u, -1.0 / (this._alpha - 1.0));
+      return (int) Math.min(this._maxDegree, Math.floor(d));
+   }//end degree
+
+   private static String pick (Random random, String[] values) {
+      return values[random.nextInt(values.length)];
+   }
+
+   private static String date (Random random, int fromYear, int years) {
+      return String.format("%04d-%02d-%02d", fromYear + random.nextInt(years),
+                           1 + random.nextInt(12), 1 + random.nextInt(28));
+   }//end date
+
+   private String day (long day) {
+      return this._dayFormat.format(new Date(EPOCH_MILLIS + day * DAY_MILLIS));
+   }
+
+   private static SimpleDateFormat utc (String pattern) {
+      SimpleDateFormat format = new SimpleDateFormat(pattern);
+      format.setTimeZone(TimeZone.getTimeZone("UTC"));
+      return format;
+   }//end utc
+
+   /**
+    * Writes one row in COPY text format, null values become \N.  The
+    * generated values never hold tabs, newlines or backslashes.
+    */
+   private static void row (Writer out, String... values) throws IOException {
+      for (int i = 0; i < values.length; ++i){
+         if (i > 0)
+            out.write('\t');
+         out.write(values[i] == null ? "\\N" : values[i]);
+      }//end for
+      out.write('\n');
+   }//end row
+
+   /**
+    * The main execution method
+    *
+    * @param args <dataDir> [-users N] [-seed S] [-alpha A] [-minDegree N] [-maxDegree N]
+    *             [-messages AVG] [-work N] [-education N]
+    *             [-load <dbname> <port> <user>] [-threads N] [-rebuildIndexes create_index.sql]
+    *             [-triggers triggers.sql]
+    */
+   public static void main (String[] args) {
+      if (args.length < 1){
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            DataGenerator.class.getName () +
+            " <dataDir> [-users N] [-seed S] [-alpha A] [-minDegree N] [-maxDegree N]" +
+            " [-messages AVG] [-work N] [-education N]" +
+            " [-load <dbname> <port> <user>] [-threads N] [-rebuildIndexes <create_index.sql>]" +
+            " [-triggers <triggers.sql>]");
+         System.exit(1);
+      }//end if
+      int users = 10000, minDegree = 2, maxDegree = 1000, work = 3, education = 2;
+      int threads = Runtime.getRuntime().availableProcessors();
+      long seed = 166L;
+      double alpha = 2.1, messages = 20;
+      String[] load = null;
+      String indexScript = null;
+      String triggerScript = null;
+      for (int i = 1; i + 1 < args.length; i += 2){
+         String value = args[i + 1];
+         if (args[i].equals("-users")) users = Integer.parseInt(value);
+         else if (args[i].equals("-seed")) seed = Long.parseLong(value);
+         else if (args[i].equals("-alpha")) alpha = Double.parseDouble(value);
+         else if (args[i].equals("-minDegree")) minDegree = Integer.parseInt(value);
+         else if (args[i].equals("-maxDegree")) maxDegree = Integer.parseInt(value);
+         else if (args[i].equals("-messages")) messages = Double.parseDouble(value);
+         else if (args[i].equals("-work")) work = Integer.parseInt(value);
+         else if (args[i].equals("-education")) education = Integer.parseInt(value);
+         else if (args[i].equals("-threads")) threads = Integer.parseInt(value);
+         else if (args[i].equals("-rebuildIndexes")) indexScript = value;
+         else if (args[i].equals("-triggers")) triggerScript = value;
+         else if (args[i].equals("-load") && i + 3 < args.length){
+            load = new String[]{ args[i + 1], args[i + 2], args[i + 3] };
+            i += 2;
+         }else{
+            System.err.println("Unknown option " + args[i]);
+            System.exit(1);
+         }//end if
+      }//end for
+
+      ConnectionPool pool = null;
+      try{
+         File dir = new File(args[0]);
+         DataGenerator generator = new DataGenerator(seed, users, alpha, minDegree, maxDegree,
+                                                     messages, work, education);
+         long start = System.nanoTime();
+         long rows = generator.write(dir);
+         System.out.println(String.format("Wrote %d rows to %s in %.1f s", rows, dir,
+                                          (System.nanoTime() - start) / 1e9));
+         if (load != null){
+            Class.forName ("org.postgresql.Driver").newInstance ();
+            String url = "jdbc:postgresql://localhost:" + load[1] + "/" + load[0];
+            pool = new ConnectionPool(url, load[2], "", 1, threads, 60000L, 600000L, 5000L);
+            BulkLoader.run(pool, threads, 5000, dir, indexScript, triggerScript);
+         }//end if
+      }catch (Exception e){
+         System.err.println ("Generation failed: " + e.getMessage ());
+         System.exit(1);
+      }finally{
+         if (pool != null)
+            pool.close();
+      }//end try
+   }//end main
+}//end DataGenerator
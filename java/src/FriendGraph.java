@@ -0,0 +1,376 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ * Group #52
+ */
+
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * This class holds the accepted connections of CONNECTION_USR as an
+ * undirected graph in memory, so friend lists and connection range checks
+ * do not have to query the database.
+ *
+ * Every userId is interned to a dense int id.  The neighbours of a user are
+ * kept in a growable int array together with its degree.  The graph is
+ * loaded once and then kept up to date by the menu actions that accept
+ * requests.  Reads may run concurrently, updates take the write lock.
+ *
+ * The load appends edges without looking for duplicates, which would cost
+ * a scan of the neighbour array per edge and make hubs quadratic.  Pairs
+ * stored in both directions are removed afterwards by sorting each
+ * neighbour array once.
+ */
+public class FriendGraph {
+
+   // userId -> int id
+   private final Map<String, Integer> _ids = new HashMap<String, Integer>();
+   // int id -> userId
+   private String[] _users = new String[1024];
+   // int id -> neighbour ids, only the first _degree[id] entries are used
+   private int[][] _adjacency = new int[1024][];
+   private int[] _degree = new int[1024];
+   private int _size = 0;
+   private int _edges = 0;
+
+   private final ReadWriteLock _lock = new ReentrantReadWriteLock();
+
+   static final String LOAD_QUERY = "SELECT userId, connectionId FROM CONNECTION_USR WHERE status = 'Accept'";
+
+   /**
+    * Builds the graph from every accepted connection in CONNECTION_USR.
+    *
+    * @param esql the database access object
+    * @return the loaded graph
+    * @throws java.sql.SQLException when the connections could not be read
+    */
+   public static FriendGraph load (ProfNetwork esql) throws SQLException {
+      final FriendGraph graph = new FriendGraph();
+      esql.executeQueryAndStream(LOAD_QUERY,
+            new ProfNetwork.RowHandler() {
+               public void handle (String[] row) {
+                  if (row[0] != null && row[1] != null && !row[0].equals(row[1]))
+                     graph.link(graph.intern(row[0]), graph.intern(row[1]));
+               }
+            });
+      graph.dedupe();
+      return graph;
+   }//end load
+
+   /**
+    * Records an accepted connection between two users.  Adding an edge that
+    * already exists has no effect.
+    */
+   public void addEdge (String a, String b) {
+      if (a == null || b == null || a.equals(b))
+         return;
+      this._lock.writeLock().lock();
+      try{
+         int x = intern(a);
+         int y = intern(b);
+         if (indexOf(x, y) >= 0)
+            return;
+         link(x, y);
+      }finally{
+         this._lock.writeLock().unlock();
+      }//end try
+   }//end addEdge
+
+   /**
+    * @return the userIds of the accepted connections of user
+    */
+   public String[] friendsOf (String user) {
+      this._lock.readLock().lock();
+      try{
+         Integer x = this._ids.get(user);
+         if (x == null)
+            return new String[0];
+         String[] friends = new String[this._degree[x]];
+         for (int i = 0; i < friends.length; ++i)
+            friends[i] = this._users[this._adjacency[x][i]];
+         return friends;
+      }finally{
+         this._lock.readLock().unlock();
+      }//end try
+   }//end friendsOf
+
+   /**
+    * @return the number of accepted connections of user
+    */
+   public int degree (String user) {
+      this._lock.readLock().lock();
+      try{
+         Integer x = this._ids.get(user);
+         return x == null ? 0 : this._degree[x];
+      }finally{
+         this._lock.readLock().unlock();
+      }//end try
+   }//end degree
+
+   /**
+    * Checks whether there is a path of at most maxHops accepted connections
+    * between two users.  Searches from both ends at once, always expanding
+    * the smaller frontier, so well connected users do not pull in their
+    * whole neighbourhood.
+    *
+    * @return true if to is within maxHops of from
+    */
+   public boolean withinHops (String from, String to, int maxHops) {
+      this._lock.readLock().lock();
+      try{
+         Integer x = this._ids.get(from);
+         Integer y = this._ids.get(to);
+         if (x == null || y == null)
+            return false;
+         if (x.intValue() == y.intValue())
+            return true;
+
+         Set<Integer> seenFrom = new HashSet<Integer>();
+         Set<Integer> seenTo = new HashSet<Integer>();
+         int[] frontFrom = { x };
+         int[] frontTo = { y };
+         seenFrom.add(x);
+         seenTo.add(y);
+         for (int hops = 0; hops < maxHops; ++hops){
+            boolean forward = frontierCost(frontFrom) <= frontierCost(frontTo);
+            int[] next = expand(forward ? frontFrom : frontTo,
+                                forward ? seenFrom : seenTo,
+                                forward ? seenTo : seenFrom);
+            if (next == null)
+               return true;
+            if (next.length == 0)
+               return false;
+            if (forward)
+               frontFrom = next;
+            else
+               frontTo = next;
+         }//end for
+         return false;
+      }finally{
+         this._lock.readLock().unlock();
+      }//end try
+   }//end withinHops
+
+   // friends handled by one fork/join task when counting mutual friends
+   private static final int MUTUAL_SPLIT = 64;
+
+   private static final ForkJoinPool POOL = new ForkJoinPool();
+
+   /**
+    * Counts, for every friend of a friend of user who is not already user's
+    * friend, how many friends they have in common with user.  The friends
+    * of well connected users are split across a fork/join pool.
+    *
+    * @return candidate userId -> number of mutual friends
+    */
+   public Map<String, Integer> mutualFriendCounts (String user) {
+      this._lock.readLock().lock();
+      try{
+         Map<String, Integer> counts = new HashMap<String, Integer>();
+         Integer x = this._ids.get(user);
+         if (x == null)
+            return counts;
+         Set<Integer> friends = new HashSet<Integer>();
+         for (int i = 0; i < this._degree[x]; ++i)
+            friends.add(this._adjacency[x][i]);
+         // the read lock held here keeps writers out while the tasks run
+         Map<Integer, int[]> byId = POOL.invoke(
+               new MutualCountTask(this._adjacency, this._degree, x, friends, 0, this._degree[x]));
+         for (Map.Entry<Integer, int[]> e : byId.entrySet())
+            counts.put(this._users[e.getKey()], e.getValue()[0]);
+         return counts;
+      }finally{
+         this._lock.readLock().unlock();
+      }//end try
+   }//end mutualFriendCounts
+
+   /**
+    * Counts mutual friends through the friends of x at positions
+    * [from, to) of its neighbour array.  The task is given the graph's
+    * arrays as they are while the caller holds the read lock.
+    */
+   private static class MutualCountTask extends RecursiveTask<Map<Integer, int[]>> {
+      private static final long serialVersionUID = 1L;
+
+      private final int[][] _adjacency;
+      private final int[] _degree;
+      private final int _x;
+      private final Set<Integer> _friends;
+      private final int _from;
+      private final int _to;
+
+      MutualCountTask (int[][] adjacency, int[] degree, int x, Set<Integer> friends, int from, int to) {
+         this._adjacency = adjacency;
+         this._degree = degree;
+         this._x = x;
+         this._friends = friends;
+         this._from = from;
+         this._to = to;
+      }
+
+      protected Map<Integer, int[]> compute () {
+         if (this._to - this._from > MUTUAL_SPLIT){
+            int mid = (this._from + this._to) >>> 1;
+            MutualCountTask left = new MutualCountTask(this._adjacency, this._degree, this._x, this._friends, this._from, mid);
+            left.fork();
+            Map<Integer, int[]> right = new MutualCountTask(this._adjacency, this._degree, this._x, this._friends, mid, this._to).compute();
+            Map<Integer, int[]> merged = left.join();
+            if (merged.size() < right.size()){
+               Map<Integer, int[]> swap = merged;
+               merged = right;
+               right = swap;
+            }//end if
+            for (Map.Entry<Integer, int[]> e : right.entrySet()){
+               int[] count = merged.get(e.getKey());
+               if (count == null)
+                  merged.put(e.getKey(), e.getValue());
+               else
+                  count[0] += e.getValue()[0];
+            }//end for
+            return merged;
+         }//end if
+
+         Map<Integer, int[]> counts = new HashMap<Integer, int[]>();
+         int[] friends = this._adjacency[this._x];
+         for (int i = this._from; i < this._to; ++i){
+            int f = friends[i];
+            int[] adj = this._adjacency[f];
+            for (int j = 0; j < this._degree[f]; ++j){
+               int g = adj[j];
+               if (g == this._x || this._friends.contains(g))
+                  continue;
+               int[] count = counts.get(g);
+               if (count == null)
+                  counts.put(g, new int[]{ 1 });
+               else
+                  ++count[0];
+            }//end for
+         }//end for
+         return counts;
+      }//end compute
+   }//end MutualCountTask
+
+   public int size () {
+      this._lock.readLock().lock();
+      try{
+         return this._size;
+      }finally{
+         this._lock.readLock().unlock();
+      }//end try
+   }//end size
+
+   public int edges () {
+      this._lock.readLock().lock();
+      try{
+         return this._edges;
+      }finally{
+         this._lock.readLock().unlock();
+      }//end try
+   }//end edges
+
+   // the number of neighbours that expanding a frontier would visit
+   private long frontierCost (int[] frontier) {
+      long cost = 0;
+      for (int v : frontier)
+         cost += this._degree[v];
+      return cost;
+   }//end frontierCost
+
+   /**
+    * Expands one BFS level.
+    * @return the new frontier, or null when it meets the other search
+    */
+   private int[] expand (int[] frontier, Set<Integer> seen, Set<Integer> other) {
+      int[] next = new int[16];
+      int count = 0;
+      for (int v : frontier){
+         int[] adj = this._adjacency[v];
+         for (int i = 0; i < this._degree[v]; ++i){
+            int w = adj[i];
+            if (other.contains(w))
+               return null;
+            if (seen.add(w)){
+               if (count == next.length)
+                  next = Arrays.copyOf(next, count * 2);
+               next[count++] = w;
+            }//end if
+         }//end for
+      }//end for
+      return Arrays.copyOf(next, count);
+   }//end expand
+
+   private int intern (String user) {
+      Integer id = this._ids.get(user);
+      if (id != null)
+         return id;
+      if (this._size == this._users.length){
+         int capacity = this._size * 2;
+         this._users = Arrays.copyOf(this._users, capacity);
+         this._adjacency = Arrays.copyOf(this._adjacency, capacity);
+         this._degree = Arrays.copyOf(this._degree, capacity);
+      }//end if
+      int x = this._size++;
+      this._users[x] = user;
+      this._adjacency[x] = new int[4];
+      this._ids.put(user, x);
+      return x;
+   }//end intern
+
+   private int indexOf (int x, int y) {
+      int[] adj = this._adjacency[x];
+      for (int i = 0; i < this._degree[x]; ++i)
+         if (adj[i] == y)
+            return i;
+      return -1;
+   }//end indexOf
+
+   private void append (int x, int y) {
+      if (this._degree[x] == this._adjacency[x].length)
+         this._adjacency[x] = Arrays.copyOf(this._adjacency[x], this._degree[x] * 2);
+      this._adjacency[x][this._degree[x]++] = y;
+   }//end append
+
+   private void link (int x, int y) {
+      append(x, y);
+      append(y, x);
+      ++this._edges;
+   }//end link
+
+   /**
+    * Sorts every neighbour array and drops repeated neighbours, left by
+    * connections stored in both directions.  Each repeat was counted as an
+    * edge from both of its ends.
+    */
+   private void dedupe () {
+      long repeats = 0;
+      for (int x = 0; x < this._size; ++x){
+         int[] adj = this._adjacency[x];
+         int n = this._degree[x];
+         Arrays.sort(adj, 0, n);
+         int kept = 0;
+         for (int i = 0; i < n; ++i)
+            if (kept == 0 || adj[kept - 1] != adj[i])
+               adj[kept++] = adj[i];
+         repeats += n - kept;
+         this._degree[x] = kept;
+      }//end for
+      this._edges -= (int) (repeats / 2);
+   }//end dedupe
+}//end FriendGraph
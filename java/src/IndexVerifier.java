@@ -0,0 +1,210 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ * Group #52
+ */
+
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * This class runs EXPLAIN on every query the application issues and lists
+ * the ones whose plan still contains a sequential scan.
+ *
+ * The statements checked are the query constants of the classes issuing
+ * them, not copies, so a query is always checked as it is sent.  Every
+ * static final String field named *_QUERY in those classes has to be
+ * checked below with sample parameters, one that is not is reported as
+ * unchecked, so a new query cannot be left out either.  Queries built per
+ * call, such as the IN lists, are checked through the methods building
+ * them.
+ *
+ * Sequential scans are disabled so that small test databases, where a
+ * sequential scan is genuinely cheaper, still show whether an index is
+ * able to serve the query.
+ */
+public class IndexVerifier {
+
+   // the classes whose *_QUERY constants must all be checked
+   static final Class<?>[] SOURCES = { ProfNetwork.class, Credentials.class, FriendGraph.class,
+         ProfileCache.class, MessagePurger.class, WriteBehindQueue.class };
+
+   private final Connection _connection;
+   private final Set<String> _checked = new HashSet<String>();
+   private int _failures = 0;
+
+   public IndexVerifier (Connection connection) {
+      this._connection = connection;
+   }//end IndexVerifier
+
+   /**
+    * Prints the plan's sequential scans, if any, under the query's name.
+    * EXPLAIN only plans the statement, so updates are not applied.
+    */
+   void check (String name, String sql, Object... params) throws SQLException {
+      this._checked.add(sql);
+      List<String> scans = new ArrayList<String>();
+      PreparedStatement stmt = this._connection.prepareStatement("EXPLAIN " + sql);
+      try{
+         for (int i = 0; i < params.length; ++i)
+            ProfNetwork.bind(stmt, i + 1, params[i]);
+         ResultSet rs = stmt.executeQuery();
+         while (rs.next()){
+            String line = rs.getString(1);
+            if (line.indexOf("Seq Scan") >= 0)
+               scans.add(line.trim());
+         }//end while
+         rs.close();
+      }finally{
+         stmt.close();
+      }//end try
+      if (scans.isEmpty()){
+         System.out.println("index     " + name);
+         return;
+      }//end if
+      System.out.println("SEQ SCAN  " + name);
+      for (String scan : scans)
+         System.out.println("      " + scan);
+      ++this._failures;
+   }//end check
+
+   private String first (String sql) throws SQLException {
+      Statement stmt = this._connection.createStatement();
+      try{
+         ResultSet rs = stmt.executeQuery(sql);
+         String value = rs.next() ? rs.getString(1) : null;
+         rs.close();
+         return value;
+      }finally{
+         stmt.close();
+      }//end try
+   }//end first
+
+   /**
+    * Checks every query, then reports the query constants left unchecked.
+    *
+    * @return the number of queries with a sequential scan or left unchecked
+    */
+   public int run () throws SQLException, IllegalAccessException {
+      Statement stmt = this._connection.createStatement();
+      stmt.execute("SET enable_seqscan = off");
+      stmt.close();
+      String uid = first("SELECT MIN(userId) FROM USR");
+      String uid2 = first("SELECT MAX(userId) FROM USR");
+      String lowest = first("SELECT MIN(msgId) FROM MESSAGE");
+      int msgId = lowest == null ? 1 : Integer.parseInt(lowest.trim());
+      String time = ProfNetwork.NEWEST_TIME;
+      int id = ProfNetwork.NEWEST_ID;
+      int page = ProfNetwork.INBOX_PAGE_SIZE;
+      String term = "smith", pre = term + "%", sub = "%" + term + "%";
+
+      check("CreateUser", ProfNetwork.CREATE_USER_QUERY, uid, "password", "user@example.com");
+      check("LogIn", Credentials.PASSWORD_QUERY, uid);
+      check("LogIn upgrade", Credentials.UPGRADE_QUERY, "hash", uid, "password");
+      check("ChangePassword", Credentials.CHANGE_QUERY, "hash", uid);
+      check("ProfileCache.load", ProfileCache.LOAD_QUERY, uid, uid, uid);
+      check("AddWork", ProfNetwork.ADD_WORK_QUERY, uid, "company", "role", "location", "2000-01-01", "2001-01-01");
+      check("AddEdu", ProfNetwork.ADD_EDU_QUERY, uid, "institution", "major", "degree", "2000-01-01", "2001-01-01");
+      check("UserStats", ProfNetwork.USER_STATS_QUERY, uid);
+      check("UnreadCount", ProfNetwork.UNREAD_COUNT_QUERY, uid);
+
+      check("FriendGraph.load", FriendGraph.LOAD_QUERY);
+      check("FriendIds", ProfNetwork.FRIEND_IDS_QUERY, uid, uid);
+      check("ViewFriends", ProfNetwork.FRIENDS_QUERY, uid, uid);
+      check("ViewFriendRequests", ProfNetwork.FRIEND_REQUESTS_QUERY, uid);
+      check("ViewFriendRequests accept", ProfNetwork.ACCEPT_REQUEST_QUERY, uid2, uid);
+      check("ViewFriendRequests reject", ProfNetwork.REJECT_REQUEST_QUERY, uid2, uid);
+      check("SendRequest exists", ProfNetwork.REQUEST_EXISTS_QUERY, uid, uid2);
+      check("SendRequest", ProfNetwork.SEND_REQUEST_QUERY, uid, uid2);
+      check("SendRequest accepted", ProfNetwork.REQUEST_ACCEPTED_QUERY, uid2, uid);
+      check("CheckDepth", ProfNetwork.CHECK_DEPTH_QUERY, uid, ProfNetwork.MAX_REQUEST_HOPS,
+            uid, uid, ProfNetwork.OPEN_REQUEST_FRIENDS, uid2);
+      check("SearchUsers", ProfNetwork.SEARCH_USERS_QUERY, term, term, pre, pre, sub, sub, term, term, sub, sub,
+            term, pre, term, sub, term, pre, term, sub, ProfNetwork.SEARCH_PAGE_SIZE, 0);
+
+      check("NewMessage", ProfNetwork.NEW_MESSAGE_QUERY, uid, uid2, "contents");
+      check("BroadcastMessage", ProfNetwork.BroadcastQuery(2), uid, "contents", uid, uid2);
+      check("ViewMessages older", ProfNetwork.ThreadPageQuery(false, true),
+            uid, time, id, page, uid, time, id, page, page);
+      check("ViewMessages newer", ProfNetwork.ThreadPageQuery(false, false),
+            uid, time, id, page, uid, time, id, page, page);
+      check("ViewConversation older", ProfNetwork.ThreadPageQuery(true, true),
+            uid, uid2, time, id, page, uid, uid2, time, id, page, page);
+      check("ViewConversation newer", ProfNetwork.ThreadPageQuery(true, false),
+            uid, uid2, time, id, page, uid, uid2, time, id, page, page);
+      check("ViewConversations", ProfNetwork.CONVERSATIONS_QUERY, uid, time, id, page);
+      check("ViewMessages delivered", WriteBehindQueue.DELIVERED_QUERY, msgId);
+      check("ViewMessages delivered flush", WriteBehindQueue.deliveredQuery(2), msgId, msgId + 1);
+      check("ViewMessages delete", WriteBehindQueue.DELETE_QUERY, uid, uid, msgId, uid, uid);
+      check("ViewMessages delete flush", WriteBehindQueue.deleteQuery(2), uid, msgId, uid2, msgId);
+      check("ViewMessages delete all", ProfNetwork.DELETE_ALL_QUERY, uid, uid, uid, uid);
+      check("MessagePurger", MessagePurger.PURGE_QUERY, 1000);
+
+      for (Class<?> source : SOURCES){
+         for (Field field : source.getDeclaredFields()){
+            int modifiers = field.getModifiers();
+            if (!Modifier.isStatic(modifiers) || field.getType() != String.class
+                  || !field.getName().endsWith("_QUERY"))
+               continue;
+            field.setAccessible(true);
+            if (!this._checked.contains((String) field.get(null))){
+               System.out.println("UNCHECKED " + source.getName() + "." + field.getName());
+               ++this._failures;
+            }//end if
+         }//end for
+      }//end for
+      return this._failures;
+   }//end run
+
+   /**
+    * The main execution method
+    *
+    * @param args <dbname> <port> <user>
+    */
+   public static void main (String[] args) {
+      if (args.length < 3) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            IndexVerifier.class.getName () +
+            " <dbname> <port> <user>");
+         System.exit(1);
+      }//end if
+      Connection connection = null;
+      int failures = 1;
+      try{
+         Class.forName ("org.postgresql.Driver").newInstance ();
+         String url = "jdbc:postgresql://localhost:" + args[1] + "/" + args[0];
+         connection = DriverManager.getConnection (url, args[2], "");
+         failures = new IndexVerifier(connection).run();
+      }catch (Exception e){
+         System.err.println ("Verification failed: " + e.getMessage ());
+      }finally{
+         try{
+            if (connection != null)
+               connection.close ();
+         }catch (SQLException e){
+            // ignored.
+         }//end try
+      }//end try
+      System.exit(failures > 0 ? 1 : 0);
+   }//end main
+}//end IndexVerifier
@@ -0,0 +1,157 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ * Group #52
+ */
+
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class records latencies in nanoseconds into fixed log-linear
+ * buckets, in the style of HdrHistogram, so percentiles can be read back
+ * without keeping every sample.
+ *
+ * Values below 128 get a bucket each.  Above that every power of two is
+ * split into 64 buckets, which keeps each reported value within about 1.6%
+ * of the recorded one whatever its magnitude.  Recording is lock free and
+ * may happen from any number of threads.
+ */
+public class LatencyHistogram {
+
+   // buckets per power of two above the linear range
+   private static final int SUB_BUCKETS = 64;
+   private static final int LINEAR = 2 * SUB_BUCKETS;
+   // enough buckets for any non negative long
+   private static final int BUCKETS = LINEAR + 56 * SUB_BUCKETS;
+
+   private final AtomicLongArray _counts = new AtomicLongArray(BUCKETS);
+   private final AtomicLong _total = new AtomicLong();
+   private final AtomicLong _sum = new AtomicLong();
+   private final AtomicLong _max = new AtomicLong();
+
+   /**
+    * Records one latency.
+    *
+    * @param nanos the latency in nanoseconds, negative values count as 0
+    */
+   public void record (long nanos) {
+      long value = Math.max(0L, nanos);
+      this._counts.incrementAndGet(indexOf(value));
+      this._total.incrementAndGet();
+      this._sum.addAndGet(value);
+      long max = this._max.get();
+      while (value > max && !this._max.compareAndSet(max, value))
+         max = this._max.get();
+   }//end record
+
+   public long count () {
+      return this._total.get();
+   }
+
+   /**
+    * @return the mean latency in nanoseconds
+    */
+   public double mean () {
+      long count = count();
+      return count == 0 ? 0.0 : (double) this._sum.get() / count;
+   }//end mean
+
+   /**
+    * @return the sum of the recorded latencies, in nanoseconds
+    */
+   public long sum () {
+      return this._sum.get();
+   }
+
+   /**
+    * @return the largest latency recorded, in nanoseconds
+    */
+   public long max () {
+      return this._max.get();
+   }
+
+   /**
+    * Returns the latency at or below which the given share of the
+    * recorded values fall.
+    *
+    * @param percentile a percentage between 0 and 100
+    * @return the latency in nanoseconds, 0 when nothing was recorded
+    */
+   public long percentile (double percentile) {
+      long count = count();
+      if (count == 0)
+         return 0L;
+      long rank = Math.max(1L, (long) Math.ceil(percentile / 100.0 * count));
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; ++i){
+         seen += this._counts.get(i);
+         if (seen >= rank)
+            return Math.min(highestValueAt(i), max());
+      }//end for
+      return max();
+   }//end percentile
+
+   /**
+    * Adds the counts of another histogram to this one.
+    */
+   public void add (LatencyHistogram other) {
+      for (int i = 0; i < BUCKETS; ++i){
+         long n = other._counts.get(i);
+         if (n != 0)
+            this._counts.addAndGet(i, n);
+      }//end for
+      this._total.addAndGet(other._total.get());
+      this._sum.addAndGet(other._sum.get());
+      long value = other.max();
+      long max = this._max.get();
+      while (value > max && !this._max.compareAndSet(max, value))
+         max = this._max.get();
+   }//end add
+
+   /**
+    * Forgets every recorded value.
+    */
+   public void reset () {
+      for (int i = 0; i < BUCKETS; ++i)
+         this._counts.set(i, 0L);
+      this._total.set(0L);
+      this._sum.set(0L);
+      this._max.set(0L);
+   }//end reset
+
+   /**
+    * @return a one line summary of the count and the main percentiles in milliseconds
+    */
+   public String summary () {
+      return String.format("count=%d mean=%.3f p50=%.3f p90=%.3f p99=%.3f p99.9=%.3f max=%.3f",
+                           count(), mean() / 1e6, percentile(50) / 1e6, percentile(90) / 1e6,
+                           percentile(99) / 1e6, percentile(99.9) / 1e6, max() / 1e6);
+   }//end summary
+
+   private static int indexOf (long value) {
+      if (value < LINEAR)
+         return (int) value;
+      // shift so the value keeps its top 7 bits, i.e. lands in [64, 128)
+      int shift = 63 - Long.numberOfLeadingZeros(value) - 6;
+      return LINEAR + (shift - 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+   }//end indexOf
+
+   private static long highestValueAt (int index) {
+      if (index < LINEAR)
+         return index;
+      int shift = (index - LINEAR) / SUB_BUCKETS + 1;
+      long sub = (index - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+      if (Long.numberOfLeadingZeros(sub + 1) <= shift)
+         return Long.MAX_VALUE;
+      return ((sub + 1) << shift) - 1;
+   }//end highestValueAt
+}//end LatencyHistogram
@@ -0,0 +1,103 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ * Group #52
+ */
+
+
+import java.sql.SQLException;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * This class removes messages that both the sender and the receiver have
+ * deleted (deleteStatus 3), so MESSAGE and its indexes do not keep growing
+ * with rows nobody can see.
+ *
+ * It runs periodically on its own timer thread and deletes at most
+ * batchSize rows per statement, each in its own short transaction, until
+ * no deleted message is left.  The rows are found through the partial
+ * index message_purge_idx.
+ */
+public class MessagePurger {
+
+   static final String PURGE_QUERY =
+         "DELETE FROM MESSAGE WHERE msgId IN "
+         + "(SELECT msgId FROM MESSAGE WHERE deleteStatus = 3 LIMIT ?)";
+
+   private final ProfNetwork _esql;
+   private final int _batchSize;
+   private final Timer _timer;
+   private volatile boolean _closed = false;
+
+   private long _purged = 0;
+   private long _runs = 0;
+
+   /**
+    * Starts purging every interval milliseconds.
+    *
+    * @param esql the database access object
+    * @param interval milliseconds between purges
+    * @param batchSize the largest number of rows deleted by one statement
+    */
+   public MessagePurger (ProfNetwork esql, long interval, int batchSize) {
+      this._esql = esql;
+      this._batchSize = Math.max(1, batchSize);
+      this._timer = new Timer("MessagePurger", true);
+      this._timer.schedule(new TimerTask() {
+         public void run () { purge(); }
+      }, interval, interval);
+   }//end MessagePurger
+
+   /**
+    * Deletes every message marked deleted on both sides, batch by batch.
+    *
+    * @return the number of messages removed
+    */
+   public long purge () {
+      boolean timed = Metrics.begin("PurgeMessages");
+      long removed = 0;
+      try{
+         int rows;
+         do{
+            rows = this._esql.executeUpdate(PURGE_QUERY, this._batchSize);
+            removed += rows;
+         }while (rows == this._batchSize && !this._closed);
+      }catch (SQLException e){
+         Metrics.error(e);
+      }finally{
+         synchronized (this){
+            this._purged += removed;
+            ++this._runs;
+         }//end synchronized
+         if (timed)
+            Metrics.end();
+      }//end try
+      return removed;
+   }//end purge
+
+   /**
+    * Stops the periodic purge.  A purge already running stops after its
+    * current batch.
+    */
+   public void close () {
+      this._closed = true;
+      this._timer.cancel();
+   }
+
+   public synchronized long getPurged () { return this._purged; }
+
+   /**
+    * @return a one line summary of the purges so far
+    */
+   public synchronized String stats () {
+      return String.format("purged=%d runs=%d", this._purged, this._runs);
+   }//end stats
+}//end MessagePurger
@@ -0,0 +1,440 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ * Group #52
+ */
+
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.ObjectName;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * This class records how long menu operations and database calls take,
+ * how often they run and how often they fail.
+ *
+ * A session labels the menu operation it is running with begin and end.
+ * Every call through the ProfNetwork helper methods is then recorded under
+ * that label, so database time can be told apart per operation.  Time a
+ * session spends waiting for its user to type is left out of the operation
+ * latency.  Calls slower than the slow query threshold are logged with
+ * their SQL text, which only ever holds '?' placeholders, never values.
+ *
+ * The figures are exposed through JMX, as Prometheus text on a local HTTP
+ * port and in a dump file rewritten periodically.  Each of these is turned
+ * on by a system property:
+ *
+ *   profnetwork.metrics.port            HTTP port serving /metrics
+ *   profnetwork.metrics.dumpFile        file the metrics are written to
+ *   profnetwork.metrics.dumpInterval    seconds between dumps (default 60)
+ *   profnetwork.metrics.slowQueryMillis slow query threshold (default 500, 0 turns the log off)
+ *   profnetwork.metrics.slowQueryLog    file slow queries are appended to (default standard error)
+ */
+public class Metrics implements MetricsMBean {
+
+   // label of database calls made outside a menu operation
+   static final String NO_OPERATION = "none";
+
+   /**
+    * Latency, count and errors of one operation.
+    */
+   static class Stat {
+      final LatencyHistogram latency = new LatencyHistogram();
+      final AtomicLong errors = new AtomicLong();
+   }//end Stat
+
+   /**
+    * The menu operation a session thread is running.
+    */
+   private static class Span {
+      final String operation;
+      final long start;
+      long inputNanos = 0;
+      boolean failed = false;
+
+      Span (String operation) {
+         this.operation = operation;
+         this.start = System.nanoTime();
+      }
+   }//end Span
+
+   private static final Metrics INSTANCE = new Metrics();
+   private static final ThreadLocal<Span> CURRENT = new ThreadLocal<Span>();
+
+   private final ConcurrentMap<String, Stat> _operations = new ConcurrentHashMap<String, Stat>();
+   private final ConcurrentMap<String, Stat> _queries = new ConcurrentHashMap<String, Stat>();
+   private final AtomicLong _slowQueries = new AtomicLong();
+   private volatile long _slowQueryNanos =
+         Long.getLong("profnetwork.metrics.slowQueryMillis", 500L) * 1000000L;
+   private volatile PrintStream _slowLog = System.err;
+
+   private ProfNetwork _esql = null;
+   private HttpServer _server = null;
+   private Timer _dumper = null;
+   private ObjectName _name = null;
+
+   public static Metrics get () {
+      return INSTANCE;
+   }
+
+   /**
+    * Starts the metrics surfaces the system properties ask for.  Failing
+    * to start one is reported and otherwise ignored.
+    *
+    * @param esql the database access object whose pool and cache are reported
+    */
+   public static synchronized void start (ProfNetwork esql) {
+      Metrics m = INSTANCE;
+      m._esql = esql;
+      try{
+         m._name = new ObjectName("ProfNetwork:type=Metrics");
+         if (!ManagementFactory.getPlatformMBeanServer().isRegistered(m._name))
+            ManagementFactory.getPlatformMBeanServer().registerMBean(m, m._name);
+      }catch (Exception e){
+         System.err.println("Unable to register metrics MBean: " + e.getMessage());
+      }//end try
+
+      String log = System.getProperty("profnetwork.metrics.slowQueryLog");
+      if (log != null){
+         try{
+            m._slowLog = new PrintStream(new FileOutputStream(log, true), true, "UTF-8");
+         }catch (IOException e){
+            System.err.println("Unable to open slow query log: " + e.getMessage());
+         }//end try
+      }//end if
+
+      Integer port = Integer.getInteger("profnetwork.metrics.port");
+      if (port != null && m._server == null){
+         try{
+            m._server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+            m._server.createContext("/metrics", new HttpHandler() {
+               public void handle (HttpExchange exchange) throws IOException {
+                  byte[] body = INSTANCE.prometheus().getBytes("UTF-8");
+                  exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+                  exchange.sendResponseHeaders(200, body.length);
+                  OutputStream out = exchange.getResponseBody();
+                  out.write(body);
+                  out.close();
+               }
+            });
+            m._server.start();
+         }catch (IOException e){
+            System.err.println("Unable to serve metrics on port " + port + ": " + e.getMessage());
+            m._server = null;
+         }//end try
+      }//end if
+
+      final String dump = System.getProperty("profnetwork.metrics.dumpFile");
+      if (dump != null && m._dumper == null){
+         long period = Long.getLong("profnetwork.metrics.dumpInterval", 60L) * 1000L;
+         m._dumper = new Timer("Metrics-dump", true);
+         m._dumper.schedule(new TimerTask() {
+            public void run () { INSTANCE.dump(new File(dump)); }
+         }, period, period);
+      }//end if
+   }//end start
+
+   /**
+    * Stops the HTTP endpoint and the dump timer, writing a last dump.
+    */
+   public static synchronized void stop () {
+      Metrics m = INSTANCE;
+      if (m._server != null){
+         m._server.stop(0);
+         m._server = null;
+      }//end if
+      if (m._dumper != null){
+         m._dumper.cancel();
+         m._dumper = null;
+         m.dump(new File(System.getProperty("profnetwork.metrics.dumpFile")));
+      }//end if
+      try{
+         if (m._name != null && ManagementFactory.getPlatformMBeanServer().isRegistered(m._name))
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(m._name);
+      }catch (Exception e){
+         // ignored.
+      }//end try
+      if (m._slowLog != System.err)
+         m._slowLog.close();
+      m._slowLog = System.err;
+      m._esql = null;
+   }//end stop
+
+   /**
+    * Marks the start of a menu operation on the current thread.  Calls
+    * nested in a running operation are recorded under the outer one.
+    *
+    * @param operation the operation's label, null to not time anything
+    * @return true if this call started the operation and must end it
+    */
+   public static boolean begin (String operation) {
+      if (operation == null || CURRENT.get() != null)
+         return false;
+      CURRENT.set(new Span(operation));
+      return true;
+   }//end begin
+
+   /**
+    * Records the menu operation running on the current thread.
+    */
+   public static void end () {
+      Span span = CURRENT.get();
+      if (span == null)
+         return;
+      CURRENT.remove();
+      Stat stat = INSTANCE.stat(INSTANCE._operations, span.operation);
+      stat.latency.record(System.nanoTime() - span.start - span.inputNanos);
+      if (span.failed)
+         stat.errors.incrementAndGet();
+   }//end end
+
+   /**
+    * Counts a failure of the running menu operation and reports its
+    * message on standard error, as the menus always did.
+    */
+   public static void error (Exception e) {
+      Span span = CURRENT.get();
+      if (span != null)
+         span.failed = true;
+      else
+         INSTANCE.stat(INSTANCE._operations, NO_OPERATION).errors.incrementAndGet();
+      System.err.println(e.getMessage());
+   }//end error
+
+   /**
+    * Records one database call made through the helper methods.
+    *
+    * @param sql the statement text
+    * @param start the System.nanoTime() at which the call started
+    * @param ok false when the call threw
+    */
+   public static void query (String sql, long start, boolean ok) {
+      query(sql, start, 0L, ok);
+   }//end query
+
+   /**
+    * Records one database call, leaving out time the call spent outside
+    * the database, such as in the row handlers of a streamed query.
+    *
+    * @param sql the statement text
+    * @param start the System.nanoTime() at which the call started
+    * @param excluded nanoseconds of the call not to count
+    * @param ok false when the call threw
+    */
+   public static void query (String sql, long start, long excluded, boolean ok) {
+      long elapsed = System.nanoTime() - start - excluded;
+      Span span = CURRENT.get();
+      String operation = span == null ? NO_OPERATION : span.operation;
+      Stat stat = INSTANCE.stat(INSTANCE._queries, operation);
+      stat.latency.record(elapsed);
+      if (!ok)
+         stat.errors.incrementAndGet();
+      long threshold = INSTANCE._slowQueryNanos;
+      if (threshold > 0 && elapsed >= threshold)
+         INSTANCE.slowQuery(operation, sql, elapsed, ok);
+   }//end query
+
+   private void slowQuery (String operation, String sql, long elapsed, boolean ok) {
+      this._slowQueries.incrementAndGet();
+      String shape = sql.replaceAll("\\s+", " ").trim();
+      this._slowLog.println(String.format("%s SLOW %s %.3f ms%s: %s", new Timestamp(System.currentTimeMillis()),
+                                          operation, elapsed / 1e6, ok ? "" : " (failed)", shape));
+   }//end slowQuery
+
+   /**
+    * Wraps a session's input so the time spent waiting on the user is
+    * not counted as time spent in the running operation.
+    */
+   public static BufferedReader timedInput (BufferedReader in) {
+      return new BufferedReader(in) {
+         public String readLine () throws IOException {
+            long start = System.nanoTime();
+            try{
+               return super.readLine();
+            }finally{
+               Span span = CURRENT.get();
+               if (span != null)
+                  span.inputNanos += System.nanoTime() - start;
+            }//end try
+         }
+      };
+   }//end timedInput
+
+   private Stat stat (ConcurrentMap<String, Stat> stats, String name) {
+      Stat stat = stats.get(name);
+      if (stat == null){
+         Stat created = new Stat();
+         stat = stats.putIfAbsent(name, created);
+         if (stat == null)
+            stat = created;
+      }//end if
+      return stat;
+   }//end stat
+
+   /**
+    * @return the metrics in the Prometheus text exposition format
+    */
+   public String prometheus () {
+      StringBuilder text = new StringBuilder();
+      family(text, "profnetwork_operation", "menu operations, excluding time waiting for input", this._operations);
+      family(text, "profnetwork_query", "database calls, labelled by the menu operation making them", this._queries);
+      text.append("# TYPE profnetwork_slow_queries_total counter\n")
+          .append("profnetwork_slow_queries_total ").append(this._slowQueries.get()).append('\n');
+      ProfNetwork esql = this._esql;
+      if (esql != null && esql.getPool() != null){
+         ConnectionPool pool = esql.getPool();
+         gauge(text, "profnetwork_pool_connections", pool.getTotal());
+         gauge(text, "profnetwork_pool_idle", pool.getIdle());
+         counter(text, "profnetwork_pool_borrows_total", pool.getBorrows());
+         counter(text, "profnetwork_pool_waits_total", pool.getWaits());
+         counter(text, "profnetwork_pool_timeouts_total", pool.getTimeouts());
+         counter(text, "profnetwork_pool_wait_seconds_total", pool.getTotalWaitMillis() / 1000.0);
+      }//end if
+      if (esql != null && esql.getWrites() != null){
+         WriteBehindQueue writes = esql.getWrites();
+         gauge(text, "profnetwork_write_behind_pending", writes.getPending());
+         counter(text, "profnetwork_write_behind_flushed_total", writes.getFlushed());
+         counter(text, "profnetwork_write_behind_failures_total", writes.getFailures());
+      }//end if
+      if (esql != null && esql.getPurger() != null)
+         counter(text, "profnetwork_messages_purged_total", esql.getPurger().getPurged());
+      if (esql != null){
+         ProfileCache profiles = esql.getProfiles();
+         gauge(text, "profnetwork_profile_cache_size", profiles.size());
+         counter(text, "profnetwork_profile_cache_hits_total", profiles.getHits());
+         counter(text, "profnetwork_profile_cache_misses_total", profiles.getMisses());
+         counter(text, "profnetwork_profile_cache_evictions_total", profiles.getEvictions());
+         Credentials credentials = esql.getCredentials();
+         counter(text, "profnetwork_login_cache_hits_total", credentials.getHits());
+         counter(text, "profnetwork_login_cache_misses_total", credentials.getMisses());
+         counter(text, "profnetwork_login_locked_out_total", credentials.getRejected());
+      }//end if
+      return text.toString();
+   }//end prometheus
+
+   private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+   private static void family (StringBuilder text, String name, String help, Map<String, Stat> stats) {
+      text.append("# HELP ").append(name).append("_seconds ").append(help).append('\n');
+      text.append("# TYPE ").append(name).append("_seconds summary\n");
+      Map<String, Stat> sorted = new TreeMap<String, Stat>(stats);
+      for (Map.Entry<String, Stat> e : sorted.entrySet()){
+         LatencyHistogram h = e.getValue().latency;
+         String label = "operation=\"" + e.getKey() + "\"";
+         for (double q : QUANTILES)
+            text.append(name).append("_seconds{").append(label).append(",quantile=\"").append(q).append("\"} ")
+                .append(h.percentile(q * 100) / 1e9).append('\n');
+         text.append(name).append("_seconds_sum{").append(label).append("} ").append(h.sum() / 1e9).append('\n');
+         text.append(name).append("_seconds_count{").append(label).append("} ").append(h.count()).append('\n');
+      }//end for
+      text.append("# TYPE ").append(name).append("_errors_total counter\n");
+      for (Map.Entry<String, Stat> e : sorted.entrySet())
+         text.append(name).append("_errors_total{operation=\"").append(e.getKey()).append("\"} ")
+             .append(e.getValue().errors.get()).append('\n');
+   }//end family
+
+   private static void gauge (StringBuilder text, String name, double value) {
+      text.append("# TYPE ").append(name).append(" gauge\n").append(name).append(' ').append(value).append('\n');
+   }
+
+   private static void counter (StringBuilder text, String name, double value) {
+      text.append("# TYPE ").append(name).append(" counter\n").append(name).append(' ').append(value).append('\n');
+   }
+
+   /**
+    * Writes the metrics to file, replacing it in one step so readers never
+    * see a partial dump.
+    */
+   void dump (File file) {
+      File tmp = new File(file.getPath() + ".tmp");
+      try{
+         PrintStream out = new PrintStream(new FileOutputStream(tmp), false, "UTF-8");
+         try{
+            out.print(prometheus());
+         }finally{
+            out.close();
+         }//end try
+         if (!tmp.renameTo(file)){
+            file.delete();
+            tmp.renameTo(file);
+         }//end if
+      }catch (IOException e){
+         System.err.println("Unable to write metrics to " + file + ": " + e.getMessage());
+      }//end try
+   }//end dump
+
+   private static String[] summaries (Map<String, Stat> stats) {
+      List<String> lines = new ArrayList<String>();
+      for (Map.Entry<String, Stat> e : new TreeMap<String, Stat>(stats).entrySet())
+         lines.add(e.getKey() + " " + e.getValue().latency.summary() + " errors=" + e.getValue().errors.get());
+      return lines.toArray(new String[0]);
+   }//end summaries
+
+   // MetricsMBean
+
+   public String[] getOperations () {
+      return summaries(this._operations);
+   }
+
+   public String[] getQueries () {
+      return summaries(this._queries);
+   }
+
+   public long getSlowQueries () {
+      return this._slowQueries.get();
+   }
+
+   public long getSlowQueryMillis () {
+      return this._slowQueryNanos / 1000000L;
+   }
+
+   public void setSlowQueryMillis (long millis) {
+      this._slowQueryNanos = Math.max(0L, millis) * 1000000L;
+   }
+
+   public String getPoolStats () {
+      ProfNetwork esql = this._esql;
+      return esql == null || esql.getPool() == null ? null : esql.getPool().stats();
+   }
+
+   public String getProfileCacheStats () {
+      ProfNetwork esql = this._esql;
+      return esql == null ? null : esql.getProfiles().stats();
+   }
+
+   public String getPrometheusText () {
+      return prometheus();
+   }
+
+   public void reset () {
+      this._operations.clear();
+      this._queries.clear();
+      this._slowQueries.set(0L);
+   }
+}//end Metrics
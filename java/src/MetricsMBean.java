@@ -0,0 +1,39 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ * Group #52
+ */
+
+
+/**
+ * The JMX view of Metrics, registered as ProfNetwork:type=Metrics.
+ */
+public interface MetricsMBean {
+
+   // one summary line per menu operation, latencies in milliseconds
+   String[] getOperations ();
+
+   // one summary line per operation making database calls
+   String[] getQueries ();
+
+   long getSlowQueries ();
+
+   long getSlowQueryMillis ();
+
+   void setSlowQueryMillis (long millis);
+
+   String getPoolStats ();
+
+   String getProfileCacheStats ();
+
+   String getPrometheusText ();
+
+   void reset ();
+}//end MetricsMBean
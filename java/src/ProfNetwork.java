@@ -19,18 +19,32 @@
  */
 
 
-import java.sql.DriverManager;
-import java.sql.Connection;
-import java.sql.Statement;
+import java.sql.PreparedStatement;
+import java.sql.Types;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 
 /**
  * This class defines a simple embedded SQL utility class that is designed to
@@ -39,13 +53,28 @@ import java.util.ArrayList;
  */
 public class ProfNetwork {
 
-   // reference to physical database connection.
-   private Connection _connection = null;
+   // pool of physical database connections shared by all menu actions.
+   private ConnectionPool _pool = null;
+
+   // accepted connections held in memory, null when not loaded.
+   private FriendGraph _graph = null;
+
+   // recently viewed profiles.
+   private ProfileCache _profiles = new ProfileCache(this,
+         Integer.getInteger("profnetwork.profileCache.size", 1000));
+
+   // message status writes made in the background, null until connected.
+   private WriteBehindQueue _writes = null;
+
+   // removes messages deleted on both sides, null when turned off.
+   private MessagePurger _purger = null;
 
-   // handling the keyboard inputs through a BufferedReader
-   // This variable can be global for convenience.
-   static BufferedReader in = new BufferedReader(
-                                new InputStreamReader(System.in));
+   // password checks, with the cache of recent logins and the lockouts.
+   private Credentials _credentials = new Credentials(this,
+         Integer.getInteger("profnetwork.login.cacheSize", 10000),
+         Integer.getInteger("profnetwork.login.maxFailures", 5),
+         Long.getLong("profnetwork.login.failureWindow", 60000L),
+         Long.getLong("profnetwork.login.lockout", 300000L));
 
    /**
     * Creates a new instance of ProfNetwork
@@ -64,75 +93,300 @@ public class ProfNetwork {
          String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
          System.out.println ("Connection URL: " + url + "\n");
 
-         // obtain a physical connection
-         this._connection = DriverManager.getConnection(url, user, passwd);
+         // open the pool of physical connections
+         this._pool = new ConnectionPool(url, user, passwd,
+               Integer.getInteger("profnetwork.pool.min", 1),
+               Integer.getInteger("profnetwork.pool.max", 10),
+               Long.getLong("profnetwork.pool.idleTimeout", 60000L),
+               Long.getLong("profnetwork.pool.maxWait", 30000L),
+               Long.getLong("profnetwork.pool.validateAfter", 5000L));
+         this._writes = new WriteBehindQueue(this,
+               Long.getLong("profnetwork.writeBehind.interval", 200L),
+               Integer.getInteger("profnetwork.writeBehind.batchSize", 500));
+         long purgeInterval = Long.getLong("profnetwork.purge.interval", 300000L);
+         if (purgeInterval > 0)
+            this._purger = new MessagePurger(this, purgeInterval,
+                  Integer.getInteger("profnetwork.purge.batchSize", 1000));
          System.out.println("Done");
       }catch (Exception e){
          System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
          System.out.println("Make sure you started postgres on this machine");
          System.exit(-1);
       }//end catch
+
+      if (Boolean.parseBoolean(System.getProperty("profnetwork.graph", "true"))){
+         try{
+            System.out.print("Loading connections...");
+            this._graph = FriendGraph.load(this);
+            System.out.println("Done (" + this._graph.size() + " users, " + this._graph.edges() + " connections)");
+         }catch (SQLException e){
+            // the menus fall back to querying CONNECTION_USR.
+            System.err.println("Unable to load connections: " + e.getMessage() );
+         }//end try
+      }//end if
+
+      // JMX, and the HTTP endpoint and dump file when configured
+      Metrics.start(this);
    }//end ProfNetwork
 
+   /**
+    * Method to fetch the prepared statement for a query shape.  Each distinct
+    * SQL string is prepared once per pooled connection and kept in that
+    * connection's statement cache, so the DBMS only parses and plans it the
+    * first time it is used.  The given parameters are bound to the
+    * statement's '?' placeholders.
+    *
+    * @param conn the borrowed connection
+    * @param sql the SQL string with '?' placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the cached statement with its parameters bound
+    * @throws java.sql.SQLException when the statement could not be prepared
+    */
+   private static PreparedStatement prepare (ConnectionPool.PooledConnection conn, String sql, Object... params) throws SQLException {
+      PreparedStatement stmt = conn.prepare (sql);
+      for (int i = 0; i < params.length; ++i)
+         bind (stmt, i + 1, params[i]);
+      return stmt;
+   }//end prepare
+
+   /**
+    * Decides whether a failed statement is run again.  A statement prepared
+    * before SchemaMigrator swapped a table's columns fails with "cached plan
+    * must not change result type".  The statements of every pooled
+    * connection are then dropped and the statement is retried once on a
+    * fresh one.  The failure rolled the statement or its transaction back,
+    * so running it again applies it only once.
+    *
+    * @param e the failure
+    * @param attempt 0 for the first run of the statement
+    * @return true when the statement should be run again
+    */
+   private boolean retryStalePlan (SQLException e, int attempt) {
+      if (attempt > 0 || e.getMessage () == null
+            || e.getMessage ().indexOf ("cached plan must not change result type") < 0)
+         return false;
+      this._pool.invalidateStatements ();
+      return true;
+   }//end retryStalePlan
+
+   /**
+    * Binds a single parameter value according to its Java type.
+    *
+    * @param stmt the prepared statement
+    * @param index the 1-based placeholder index
+    * @param value the value to bind, null binds SQL NULL
+    * @throws java.sql.SQLException when the value could not be bound
+    */
+   static void bind (PreparedStatement stmt, int index, Object value) throws SQLException {
+      if (value == null)
+         stmt.setNull (index, Types.VARCHAR);
+      else if (value instanceof Integer)
+         stmt.setInt (index, ((Integer) value).intValue ());
+      else if (value instanceof Long)
+         stmt.setLong (index, ((Long) value).longValue ());
+      else if (value instanceof Boolean)
+         stmt.setBoolean (index, ((Boolean) value).booleanValue ());
+      else
+         stmt.setString (index, value.toString ());
+   }//end bind
+
    /**
     * Method to execute an update SQL statement.  Update SQL instructions
     * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
     *
-    * @param sql the input SQL string
+    * @param sql the input SQL string with '?' placeholders
+    * @param params the values bound to the placeholders
+    * @return the number of rows affected
     * @throws java.sql.SQLException when update failed
     */
-   public void executeUpdate (String sql) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+   public int executeUpdate (String sql, Object... params) throws SQLException {
+      for (int attempt = 0; ; ++attempt){
+         long start = System.nanoTime ();
+         boolean ok = false;
+         ConnectionPool.PooledConnection conn = null;
+         try{
+            conn = this._pool.borrow ();
+            // fetches the cached statement and issues the update instruction
+            int rows = prepare (conn, sql, params).executeUpdate ();
+            ok = true;
+            return rows;
+         }catch (SQLException e){
+            if (!retryStalePlan (e, attempt))
+               throw e;
+         }finally{
+            this._pool.release (conn);
+            Metrics.query (sql, start, ok);
+         }//end try
+      }//end for
+   }//end executeUpdate
 
-      // issues the update instruction
-      stmt.executeUpdate (sql);
+   // rows written by one set-based statement, see placeholders.
+   static final int BATCH_SIZE = Integer.getInteger("profnetwork.batchSize", 100);
 
-      // close the instruction
-      stmt.close ();
-   }//end executeUpdate
+   /**
+    * @return count '?' placeholders separated by commas, for an IN list or
+    * the rows of a multi-row statement
+    */
+   static String placeholders (int count) {
+      StringBuilder list = new StringBuilder(count * 3);
+      for (int i = 0; i < count; ++i)
+         list.append(i > 0 ? ", ?" : "?");
+      return list.toString();
+   }//end placeholders
+
+   /**
+    * Method to execute one update SQL statement for many sets of parameters
+    * in a single transaction, so either every row is applied or none is.
+    * The bundled 7.3 driver runs a JDBC batch as one executeUpdate per row,
+    * so this saves no round trips.  Hot paths write many rows with one
+    * set-based statement instead (see placeholders).
+    *
+    * @param sql the input SQL string with '?' placeholders
+    * @param rows the values bound to the placeholders, one array per execution
+    * @return the number of rows affected by each execution, in order
+    * @throws java.sql.SQLException when the batch failed and was rolled back
+    */
+   public int[] executeBatch (String sql, List<Object[]> rows) throws SQLException {
+      for (int attempt = 0; ; ++attempt){
+         long start = System.nanoTime ();
+         boolean ok = false;
+         ConnectionPool.PooledConnection conn = null;
+         try{
+            conn = this._pool.borrow ();
+            conn.getConnection ().setAutoCommit (false);
+            PreparedStatement stmt = conn.prepare (sql);
+            int[] counts = new int[rows.size ()];
+            int sent = 0;
+            for (int r = 0; r < rows.size (); ++r){
+               Object[] params = rows.get (r);
+               for (int i = 0; i < params.length; ++i)
+                  bind (stmt, i + 1, params[i]);
+               stmt.addBatch ();
+               if (r + 1 - sent == BATCH_SIZE || r + 1 == rows.size ()){
+                  int[] done = stmt.executeBatch ();
+                  System.arraycopy (done, 0, counts, sent, done.length);
+                  sent = r + 1;
+               }//end if
+            }//end for
+            conn.getConnection ().commit ();
+            conn.getConnection ().setAutoCommit (true);
+            ok = true;
+            return counts;
+         }catch (SQLException e){
+            if (!retryStalePlan (e, attempt))
+               throw e;
+         }finally{
+            // release rolls back a transaction left open by a failure.
+            this._pool.release (conn);
+            Metrics.query (sql, start, ok);
+         }//end try
+      }//end for
+   }//end executeBatch
+
+   /**
+    * Method to execute several SQL statements returning rows, such as
+    * INSERT ... RETURNING, in a single transaction.  Either every statement
+    * is applied or none is.
+    *
+    * @param queries the SQL strings with '?' placeholders
+    * @param params the values bound to the placeholders, one array per statement
+    * @return the rows returned by all the statements, in order
+    * @throws java.sql.SQLException when a statement failed and the transaction was rolled back
+    */
+   public List<List<String>> executeInTransaction (List<String> queries, List<Object[]> params) throws SQLException {
+      for (int attempt = 0; ; ++attempt){
+         ConnectionPool.PooledConnection conn = null;
+         try{
+            conn = this._pool.borrow ();
+            conn.getConnection ().setAutoCommit (false);
+            List<List<String>> result = new ArrayList<List<String>>();
+            for (int q = 0; q < queries.size (); ++q){
+               long start = System.nanoTime ();
+               boolean ok = false;
+               try{
+                  ResultSet rs = prepare (conn, queries.get (q), params.get (q)).executeQuery ();
+                  int numCol = rs.getMetaData ().getColumnCount ();
+                  while (rs.next ()){
+                     List<String> record = new ArrayList<String>();
+                     for (int i = 1; i <= numCol; ++i)
+                        record.add (rs.getString (i));
+                     result.add (record);
+                  }//end while
+                  rs.close ();
+                  ok = true;
+               }finally{
+                  Metrics.query (queries.get (q), start, ok);
+               }//end try
+            }//end for
+            conn.getConnection ().commit ();
+            conn.getConnection ().setAutoCommit (true);
+            return result;
+         }catch (SQLException e){
+            if (!retryStalePlan (e, attempt))
+               throw e;
+         }finally{
+            // release rolls back a transaction left open by a failure.
+            this._pool.release (conn);
+         }//end try
+      }//end for
+   }//end executeInTransaction
 
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and outputs the results to
     * standard out.
     *
-    * @param query the input query string
+    * @param query the input query string with '?' placeholders
+    * @param params the values bound to the placeholders
     * @return the number of rows returned
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public int executeQueryAndPrintResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
-
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
-
-      // iterates through the result set and output them to standard out.
-      boolean outputHeader = true;
-      while (rs.next()){
-	 if(outputHeader){
-	    for(int i = 1; i <= numCol; i++){
-		System.out.print(rsmd.getColumnName(i) + "\t");
-	    }
-	    System.out.println();
-	    outputHeader = false;
-	 }
-         for (int i=1; i<=numCol; ++i)
-            System.out.print (rs.getString (i) + "\t");
-         System.out.println ();
-         ++rowCount;
-      }//end while
-      stmt.close ();
-      return rowCount;
+   public int executeQueryAndPrintResult (String query, Object... params) throws SQLException {
+      for (int attempt = 0; ; ++attempt){
+         long start = System.nanoTime ();
+         boolean ok = false;
+         ConnectionPool.PooledConnection conn = null;
+         ResultSet rs = null;
+         try{
+            conn = this._pool.borrow ();
+            // issues the query instruction
+            rs = prepare (conn, query, params).executeQuery ();
+
+            /*
+             ** obtains the metadata object for the returned result set.  The metadata
+             ** contains row and column info.
+             */
+            ResultSetMetaData rsmd = rs.getMetaData ();
+            int numCol = rsmd.getColumnCount ();
+            int rowCount = 0;
+
+            // iterates through the result set and output them to standard out.
+            boolean outputHeader = true;
+            while (rs.next()){
+               if(outputHeader){
+                  for(int i = 1; i <= numCol; i++){
+                     System.out.print(rsmd.getColumnName(i) + "\t");
+                  }
+                  System.out.println();
+                  outputHeader = false;
+               }
+               for (int i=1; i<=numCol; ++i)
+                  System.out.print (rs.getString (i) + "\t");
+               System.out.println ();
+               ++rowCount;
+            }//end while
+            ok = true;
+            return rowCount;
+         }catch (SQLException e){
+            if (!retryStalePlan (e, attempt))
+               throw e;
+         }finally{
+            if (rs != null)
+               rs.close ();
+            this._pool.release (conn);
+            Metrics.query (query, start, ok);
+         }//end try
+      }//end for
    }//end executeQuery
 
    /**
@@ -140,110 +394,282 @@ public class ProfNetwork {
     * method issues the query to the DBMS and returns the results as
     * a list of records. Each record in turn is a list of attribute values
     *
-    * @param query the input query string
+    * @param query the input query string with '?' placeholders
+    * @param params the values bound to the placeholders
     * @return the query result as a list of records
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
-
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
-
-      // iterates through the result set and saves the data returned by the query.
-      boolean outputHeader = false;
-      List<List<String>> result  = new ArrayList<List<String>>();
-      while (rs.next()){
-          List<String> record = new ArrayList<String>();
-         for (int i=1; i<=numCol; ++i)
-            record.add(rs.getString (i));
-         result.add(record);
-      }//end while
-      stmt.close ();
-      return result;
+   public List<List<String>> executeQueryAndReturnResult (String query, Object... params) throws SQLException {
+      for (int attempt = 0; ; ++attempt){
+         long start = System.nanoTime ();
+         boolean ok = false;
+         ConnectionPool.PooledConnection conn = null;
+         ResultSet rs = null;
+         try{
+            conn = this._pool.borrow ();
+            // issues the query instruction
+            rs = prepare (conn, query, params).executeQuery ();
+
+            /*
+             ** obtains the metadata object for the returned result set.  The metadata
+             ** contains row and column info.
+             */
+            ResultSetMetaData rsmd = rs.getMetaData ();
+            int numCol = rsmd.getColumnCount ();
+
+            // iterates through the result set and saves the data returned by the query.
+            List<List<String>> result  = new ArrayList<List<String>>();
+            while (rs.next()){
+               List<String> record = new ArrayList<String>();
+               for (int i=1; i<=numCol; ++i)
+                  record.add(rs.getString (i));
+               result.add(record);
+            }//end while
+            ok = true;
+            return result;
+         }catch (SQLException e){
+            if (!retryStalePlan (e, attempt))
+               throw e;
+         }finally{
+            if (rs != null)
+               rs.close ();
+            this._pool.release (conn);
+            Metrics.query (query, start, ok);
+         }//end try
+      }//end for
    }//end executeQueryAndReturnResult
 
+   /**
+    * Receives the rows of a streamed query one at a time.  The row array is
+    * reused for every row, so a handler that keeps values must copy them.
+    */
+   public interface RowHandler {
+      void handle (String[] row);
+   }//end RowHandler
+
+   // rows fetched per round trip while streaming a result.
+   static final int FETCH_SIZE = Math.max(1, Integer.getInteger("profnetwork.fetchSize", 100));
+
+   // the cursor a streamed query is read through.  A pooled connection
+   // runs one statement at a time, so one name is enough.
+   private static final String STREAM_CURSOR = "profnetwork_stream";
+
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
-    * method issues the query to the DBMS and returns the number of results
+    * method issues the query to the DBMS and hands every record to the
+    * handler as it is read, without collecting the result.  The query is
+    * opened as a cursor inside a transaction and read FETCH_SIZE rows per
+    * round trip, so memory use does not depend on the size of the result.
+    * The bundled 7.3 driver does not implement setFetchSize, so the cursor
+    * is declared and fetched explicitly.  The time spent in the handler,
+    * which usually prints to the client, is not counted in the query
+    * latency.
     *
-    * @param query the input query string
+    * @param query the input query string with '?' placeholders
+    * @param handler receives each record in turn
+    * @param params the values bound to the placeholders
     * @return the number of rows returned
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public int executeQuery (String query) throws SQLException {
-       // creates a statement object
-       Statement stmt = this._connection.createStatement ();
+   public int executeQueryAndStream (String query, RowHandler handler, Object... params) throws SQLException {
+      long start = System.nanoTime ();
+      long handling = 0;
+      boolean ok = false;
+      ConnectionPool.PooledConnection conn = null;
+      PreparedStatement declare = null;
+      Statement fetch = null;
+      try{
+         conn = this._pool.borrow ();
+         // the cursor lives until the transaction ends.
+         conn.getConnection ().setAutoCommit (false);
+         // not taken from the statement cache: a DECLARE cannot be prepared
+         // on the server, and the query is planned when the cursor opens.
+         declare = conn.getConnection ().prepareStatement (
+               "DECLARE " + STREAM_CURSOR + " NO SCROLL CURSOR FOR " + query);
+         for (int i = 0; i < params.length; ++i)
+            bind (declare, i + 1, params[i]);
+         declare.execute ();
+
+         fetch = conn.getConnection ().createStatement ();
+         String[] row = null;
+         int rowCount = 0;
+         int fetched;
+         do {
+            ResultSet rs = fetch.executeQuery ("FETCH FORWARD " + FETCH_SIZE + " FROM " + STREAM_CURSOR);
+            int numCol = rs.getMetaData ().getColumnCount ();
+            if (row == null)
+               row = new String[numCol];
+            fetched = 0;
+            while (rs.next()){
+               for (int i=1; i<=numCol; ++i)
+                  row[i-1] = rs.getString (i);
+               long handled = System.nanoTime ();
+               handler.handle (row);
+               handling += System.nanoTime () - handled;
+               ++fetched;
+            }//end while
+            rs.close ();
+            rowCount += fetched;
+         }while (fetched == FETCH_SIZE);
+         // ending the transaction closes the cursor.
+         conn.getConnection ().commit ();
+         conn.getConnection ().setAutoCommit (true);
+         ok = true;
+         return rowCount;
+      }finally{
+         if (fetch != null)
+            fetch.close ();
+         if (declare != null)
+            declare.close ();
+         // release rolls back a transaction left open by a failure.
+         this._pool.release (conn);
+         Metrics.query (query, start, handling, ok);
+      }//end try
+   }//end executeQueryAndStream
 
-       // issues the query instruction
-       ResultSet rs = stmt.executeQuery (query);
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT).  This
+    * method issues the query to the DBMS and returns the number of results
+    *
+    * @param query the input query string with '?' placeholders
+    * @param params the values bound to the placeholders
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQuery (String query, Object... params) throws SQLException {
+      for (int attempt = 0; ; ++attempt){
+         long start = System.nanoTime ();
+         boolean ok = false;
+         ConnectionPool.PooledConnection conn = null;
+         try{
+            conn = this._pool.borrow ();
+            // issues the query instruction
+            ResultSet rs = prepare (conn, query, params).executeQuery ();
 
-       int rowCount = 0;
+            int rowCount = 0;
 
-       // iterates through the result set and count nuber of results.
-       if(rs.next()){
-          rowCount++;
-       }//end while
-       stmt.close ();
-       return rowCount;
+            // iterates through the result set and count nuber of results.
+            if(rs.next()){
+               rowCount++;
+            }//end while
+            rs.close ();
+            ok = true;
+            return rowCount;
+         }catch (SQLException e){
+            if (!retryStalePlan (e, attempt))
+               throw e;
+         }finally{
+            this._pool.release (conn);
+            Metrics.query (query, start, ok);
+         }
+      }//end for
    }
 
    /**
     * Method to fetch the last value from sequence. This
     * method issues the query to the DBMS and returns the current
-    * value of sequence used for autogenerated keys
+    * value of sequence used for autogenerated keys.  currval is local to a
+    * database session, so this only sees values generated on the pooled
+    * connection it happens to borrow.
     *
     * @param sequence name of the DB sequence
     * @return current value of a sequence
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int getCurrSeqVal(String sequence) throws SQLException {
-	Statement stmt = this._connection.createStatement ();
-
-	ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-	if (rs.next())
-		return rs.getInt(1);
-	return -1;
+	long start = System.nanoTime ();
+	boolean ok = false;
+	ConnectionPool.PooledConnection conn = null;
+	try{
+		conn = this._pool.borrow ();
+		ResultSet rs = prepare (conn, "Select currval(?)", sequence).executeQuery ();
+		int value = rs.next() ? rs.getInt(1) : -1;
+		rs.close ();
+		ok = true;
+		return value;
+	}finally{
+		this._pool.release (conn);
+		Metrics.query ("Select currval(?)", start, ok);
+	}
    }
 
    /**
-    * Method to close the physical connection if it is open.
+    * @return the connection pool behind the helper methods
+    */
+   public ConnectionPool getPool(){
+      return this._pool;
+   }//end getPool
+
+   /**
+    * @return the in-memory graph of accepted connections, or null when the
+    * menus have to query CONNECTION_USR instead
+    */
+   public FriendGraph getGraph(){
+      return this._graph;
+   }//end getGraph
+
+   /**
+    * @return the cache of assembled user profiles
+    */
+   public ProfileCache getProfiles(){
+      return this._profiles;
+   }//end getProfiles
+
+   /**
+    * @return the queue of message status writes made in the background
+    */
+   public WriteBehindQueue getWrites(){
+      return this._writes;
+   }//end getWrites
+
+   /**
+    * @return the background purge of deleted messages, or null when it is turned off
+    */
+   public MessagePurger getPurger(){
+      return this._purger;
+   }//end getPurger
+
+   /**
+    * @return the password checker used by LogIn and ChangePassword
+    */
+   public Credentials getCredentials(){
+      return this._credentials;
+   }//end getCredentials
+
+   /**
+    * Method to close the physical connections if they are open.
     */
    public void cleanup(){
-      try{
-         if (this._connection != null){
-            this._connection.close ();
-         }//end if
-      }catch (SQLException e){
-         // ignored.
-      }//end try
+      if (this._purger != null){
+         this._purger.close ();
+      }//end if
+      // queued status writes still need the pool
+      if (this._writes != null){
+         this._writes.close ();
+      }//end if
+      Metrics.stop ();
+      if (this._pool != null){
+         this._pool.close ();
+      }//end if
    }//end cleanup
 
    /**
     * The main execution method
     *
-    * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
+    * @param args the command line arguments this inclues the <dbname> <port> <user> [serverPort]
     */
    public static void main (String[] args) {
-      if (args.length != 3) {
+      if (args.length != 3 && args.length != 4) {
          System.err.println (
             "Usage: " +
             "java [-classpath <classpath>] " +
             ProfNetwork.class.getName () +
-            " <dbname> <port> <user>");
+            " <dbname> <port> <user> [serverPort]");
          return;
       }//end if
 
-      Greeting();
+      if (args.length == 3)
+         Greeting(System.out);
       ProfNetwork esql = null;
       try{
          // use postgres JDBC driver.
@@ -255,47 +681,14 @@ public class ProfNetwork {
          String user = args[2];
          esql = new ProfNetwork (dbname, dbport, user, "");
 
-         boolean keepon = true;
-         while(keepon) {
-            // These are sample SQL statements
-            System.out.println("MAIN MENU");
-            System.out.println("---------");
-            System.out.println("1. Create user");
-            System.out.println("2. Log in");
-            System.out.println("9. < EXIT");
-            String authorisedUser = null;
-            switch (readChoice()){
-               case 1: CreateUser(esql); break;
-               case 2: authorisedUser = LogIn(esql); break;
-               case 9: keepon = false; break;
-               default : System.out.println("Unrecognized choice!"); break;
-            }//end switch
-            if (authorisedUser != null) {
-              boolean usermenu = true;
-              while(usermenu) {
-                System.out.println("MAIN MENU");
-                System.out.println("---------");
-                System.out.println("1. Goto Friend List");
-                System.out.println("2. View and Update Profile");
-                System.out.println("3. Write a new message");
-                System.out.println("4. Send Friend Request");
-                System.out.println("5. View Messages");
-                System.out.println("6. Search People");
-                System.out.println(".........................");
-                System.out.println("9. Log out");
-                switch (readChoice()){
-                   case 1: FriendList(esql, authorisedUser); break;
-                   case 2: UpdateProfile(esql, authorisedUser); break;
-                   case 3: NewMessage(esql, authorisedUser, null); break;
-                   case 4: SendRequest(esql, authorisedUser, null); break;
-                   case 5: ViewMessages(esql, authorisedUser); break;
-                   case 6: SearchPeople(esql, authorisedUser, null); break;
-                   case 9: usermenu = false; break;
-                   default : System.out.println("Unrecognized choice!"); break;
-                }
-              }
-            }
-         }//end while
+         if (args.length == 4){
+            // server mode, every client connection gets its own session.
+            Serve(esql, Integer.parseInt(args[3]));
+         }else{
+            BufferedReader in = new BufferedReader(
+                                   new InputStreamReader(System.in));
+            RunSession(esql, in, System.out);
+         }//end if
       }catch(Exception e) {
          System.err.println (e.getMessage ());
       }finally{
@@ -312,8 +705,162 @@ public class ProfNetwork {
       }//end try
    }//end main
 
-   public static void Greeting(){
-      System.out.println(
+   /**
+    * Accepts client connections on the given port and runs one interactive
+    * session per client, each on its own thread.  The sessions share the
+    * ProfNetwork object and through it the connection pool.  Never returns
+    * unless the server socket fails.
+    *
+    * @param esql the shared database access object
+    * @param port the TCP port to listen on
+    * @throws java.io.IOException when the server socket fails
+    */
+   public static void Serve(final ProfNetwork esql, int port) throws IOException {
+      final ServerSocket server = new ServerSocket(port);
+      final ExecutorService sessions = NewSessionExecutor();
+      Runtime.getRuntime().addShutdownHook(new Thread() {
+         public void run() {
+            try{
+               server.close();
+            }catch (IOException e){
+               // ignored.
+            }
+            sessions.shutdownNow();
+            esql.cleanup();
+         }
+      });
+      System.out.println("Listening for sessions on port " + port);
+      try{
+         while (true){
+            final Socket client = server.accept();
+            sessions.execute(new Runnable() {
+               public void run() {
+                  try{
+                     BufferedReader in = new BufferedReader(
+                           new InputStreamReader(client.getInputStream(), "UTF-8"));
+                     PrintStream out = new PrintStream(client.getOutputStream(), true, "UTF-8");
+                     Greeting(out);
+                     RunSession(esql, in, out);
+                  }catch (Exception e){
+                     System.err.println (e.getMessage ());
+                  }finally{
+                     try{
+                        client.close();
+                     }catch (IOException e){
+                        // ignored.
+                     }
+                  }
+               }
+            });
+         }//end while
+      }finally{
+         sessions.shutdown();
+         server.close();
+      }//end try
+   }//end Serve
+
+   /**
+    * Sessions mostly wait on their client, so on a JVM with virtual threads
+    * (Java 21 and later) each one gets a virtual thread.  Older JVMs fall
+    * back to a cached pool of platform threads.
+    */
+   private static ExecutorService NewSessionExecutor() {
+      try{
+         return (ExecutorService) Executors.class
+               .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+      }catch (Exception e){
+         return Executors.newCachedThreadPool();
+      }//end try
+   }//end NewSessionExecutor
+
+   /**
+    * Drives the menus for one user until they choose to exit.
+    *
+    * @param esql the shared database access object
+    * @param in the session's input
+    * @param out the session's output
+    */
+   public static void RunSession(ProfNetwork esql, BufferedReader in, PrintStream out){
+      // time spent waiting for the user is not part of an operation's latency
+      in = Metrics.timedInput(in);
+      boolean keepon = true;
+      while(keepon) {
+         // These are sample SQL statements
+         out.println("MAIN MENU");
+         out.println("---------");
+         out.println("1. Create user");
+         out.println("2. Log in");
+         out.println("9. < EXIT");
+         String authorisedUser = null;
+         int choice = readChoice(in, out);
+         boolean timed = Metrics.begin(OperationName(START_OPERATIONS, choice));
+         try{
+            switch (choice){
+               case 1: CreateUser(esql, in, out); break;
+               case 2: authorisedUser = LogIn(esql, in, out); break;
+               case 9: keepon = false; break;
+               default : out.println("Unrecognized choice!"); break;
+            }//end switch
+         }finally{
+            if (timed)
+               Metrics.end();
+         }//end try
+         if (authorisedUser != null) {
+           boolean usermenu = true;
+           while(usermenu) {
+             int unread = UnreadCount(esql, authorisedUser);
+             out.println("MAIN MENU");
+             out.println("---------");
+             out.println("1. Goto Friend List");
+             out.println("2. View and Update Profile");
+             out.println("3. Write a new message");
+             out.println("4. Send Friend Request");
+             out.println(unread > 0 ? "5. View Messages (" + unread + " unread)" : "5. View Messages");
+             out.println("6. Search People");
+             out.println("7. Message Many Users");
+             out.println("8. People You May Know");
+             out.println(".........................");
+             out.println("9. Log out");
+             int action = readChoice(in, out);
+             boolean timedAction = Metrics.begin(OperationName(USER_OPERATIONS, action));
+             try{
+                switch (action){
+                   case 1: FriendList(esql, in, out, authorisedUser); break;
+                   case 2: UpdateProfile(esql, in, out, authorisedUser); break;
+                   case 3: NewMessage(esql, in, out, authorisedUser, null); break;
+                   case 4: SendRequest(esql, in, out, authorisedUser, null); break;
+                   case 5: ViewMessages(esql, in, out, authorisedUser); break;
+                   case 6: SearchPeople(esql, in, out, authorisedUser, null); break;
+                   case 7: BroadcastMessage(esql, in, out, authorisedUser); break;
+                   case 8: PeopleYouMayKnow(esql, in, out, authorisedUser); break;
+                   case 9: usermenu = false; break;
+                   default : out.println("Unrecognized choice!"); break;
+                }
+             }finally{
+                if (timedAction)
+                   Metrics.end();
+             }
+           }
+         }
+      }//end while
+   }//end RunSession
+
+   // metric labels of the menu choices, by choice number
+   static final String[] START_OPERATIONS = { null, "CreateUser", "LogIn" };
+   static final String[] USER_OPERATIONS = { null, "FriendList", "UpdateProfile", "NewMessage",
+         "SendRequest", "ViewMessages", "SearchPeople", "BroadcastMessage", "PeopleYouMayKnow" };
+
+   /*
+    * @return the metric label of a menu choice, null for exit and invalid choices
+    **/
+   static String OperationName(String[] operations, int choice){
+      if (choice > 0 && choice < operations.length)
+         return operations[choice];
+      return null;
+   }
+
+   public static void Greeting(PrintStream out){
+      out.println(
          "\n\n*******************************************************\n" +
          "              User Interface      	               \n" +
          "*******************************************************\n");
@@ -321,508 +868,927 @@ public class ProfNetwork {
 
    /*
     * Reads the users choice given from the keyboard
+    * Once the input is closed or fails 9 is returned, which backs out of
+    * every menu
     * @int
     **/
-   public static int readChoice() {
+   public static int readChoice(BufferedReader in, PrintStream out) {
       int input;
       // returns only if a correct value is given.
       do {
-         System.out.print("Please make your choice: ");
+         out.print("Please make your choice: ");
          try { // read the integer, parse it and break.
-            input = Integer.parseInt(in.readLine());
+            String line = in.readLine();
+            if (line == null)
+               return 9;
+            input = Integer.parseInt(line.trim());
             break;
-         }catch (Exception e) {
-            System.out.println("Your input is invalid!");
+         }catch (NumberFormatException e) {
+            out.println("Your input is invalid!");
             continue;
+         }catch (IOException e) {
+            // a client that reset its connection fails every read
+            return 9;
          }//end try
       }while (true);
       return input;
    }//end readChoice
 
+   static final String CREATE_USER_QUERY = "INSERT INTO USR (userId, password, email) VALUES (?,?,?)";
+
    /*
     * Creates a new user with privided login, passowrd and phoneNum
     * An empty block and contact list would be generated and associated with a user
     **/
-   public static void CreateUser(ProfNetwork esql){
+   public static void CreateUser(ProfNetwork esql, BufferedReader in, PrintStream out){
       try{
-         System.out.print("\tEnter user login: ");
+         out.print("\tEnter user login: ");
          String login = in.readLine();
-         System.out.print("\tEnter user password: ");
+         out.print("\tEnter user password: ");
          String password = in.readLine();
-         System.out.print("\tEnter user email: ");
+         out.print("\tEnter user email: ");
          String email = in.readLine();
 
 	 //Creating empty contact\block lists for a user
-	 String query = String.format("INSERT INTO USR (userId, password, email) VALUES ('%s','%s','%s')", login, password, email);
-
-         esql.executeUpdate(query);
-         System.out.println ("User successfully created!");
+         esql.executeUpdate(CREATE_USER_QUERY, login, Credentials.hash(password), email);
+         out.println ("User successfully created!");
       }catch(Exception e){
-         System.err.println (e.getMessage ());
+         Metrics.error(e);
       }
    }//end
 
    /*
     * Check log in credentials for an existing user
+    * Only the stored password hash is read, see Credentials
     * @return User login or null is the user does not exist
     **/
-   public static String LogIn(ProfNetwork esql){
+   public static String LogIn(ProfNetwork esql, BufferedReader in, PrintStream out){
       try{
-         System.out.print("\tEnter user login: ");
+         out.print("\tEnter user login: ");
          String login = in.readLine();
-         System.out.print("\tEnter user password: ");
+         out.print("\tEnter user password: ");
          String password = in.readLine();
 
-         String query = String.format("SELECT * FROM USR WHERE userId = '%s' AND password = '%s'", login, password);
-         int userNum = esql.executeQuery(query);
-         if (userNum > 0)
+         //check refuses locked out users itself and counts them
+         if (esql.getCredentials().check(login, password))
         	 return login;
-         System.out.println("\tInvalid Username or Password: ");
+         if (esql.getCredentials().isLocked(login))
+        	 out.println("\tToo many failed logins, try again later");
+         else
+        	 out.println("\tInvalid Username or Password: ");
          return null;
       }catch(Exception e){
-         System.err.println (e.getMessage ());
+         Metrics.error(e);
          return null;
       }
    }//end
 
 // Rest of the functions definition go in here
-   public static void FriendList(ProfNetwork esql, String authorisedUser){
+   public static void FriendList(ProfNetwork esql, BufferedReader in, PrintStream out, String authorisedUser){
 	   try{
 		   boolean usermenu = true;
+	       int[] stats = UserStats(esql, authorisedUser);
 	       while(usermenu) {
-	         System.out.println("Friends List");
-	         System.out.println("---------");
-	         System.out.println("1. View Friends");
-	         System.out.println("2. View Friend Requests");
-	         System.out.println("3. Send a Friend Request");
-	         System.out.println(".........................");
-	         System.out.println("9. Go Back");
-	         switch (readChoice()){
-	            case 1: ViewFriends(esql, authorisedUser); return;
-	            case 2: ViewFriendRequests(esql,authorisedUser); return;
-	            case 3: SendRequest(esql,authorisedUser, null); return;
+	         out.println("Friends List");
+	         out.println("---------");
+	         if(stats != null)
+	        	 out.println(stats[0] + " friends, " + stats[1] + " pending requests");
+	         out.println("1. View Friends");
+	         out.println("2. View Friend Requests");
+	         out.println("3. Send a Friend Request");
+	         out.println(".........................");
+	         out.println("9. Go Back");
+	         switch (readChoice(in, out)){
+	            case 1: ViewFriends(esql, in, out, authorisedUser); return;
+	            case 2: ViewFriendRequests(esql, in, out, authorisedUser); return;
+	            case 3: SendRequest(esql, in, out, authorisedUser, null); return;
 	            case 9: usermenu = false; break;
-	            default : System.out.println("Unrecognized choice!"); break;
+	            default : out.println("Unrecognized choice!"); break;
 	         }
 	       }
 		   return;
 	   }catch(Exception e){
-	         System.err.println (e.getMessage ());
+	         Metrics.error(e);
 	         return;
 	   }
    }
    
-   public static String ViewFriends(ProfNetwork esql, String user){
+   static final String FRIENDS_QUERY =
+		   "SELECT U.userId, U.email, U.name, U.dateOfBirth "
+		   + "FROM USR U, CONNECTION_USR C "
+		   + "WHERE C.userId = ? AND C.status = 'Accept' AND C.connectionId = U.userId "
+		   + "UNION "
+		   + "SELECT U.userId, U.email, U.name, U.dateOfBirth "
+		   + "FROM USR U, CONNECTION_USR C "
+		   + "WHERE C.connectionId = ? AND C.status = 'Accept' AND C.userId = U.userId";
+   
+   public static String ViewFriends(ProfNetwork esql, BufferedReader in, PrintStream out, String user){
 	   try{
-		   String query = String.format(
-				   "SELECT U.userId, U.email, U.name, U.dateOfBirth "
-				   + "FROM USR U, CONNECTION_USR C "
-				   + "WHERE C.userId = '%s' AND C.status = 'Accept' AND C.connectionId = U.userId "
-				   + "UNION "
-				   + "SELECT U.userId, U.email, U.name, U.dateOfBirth "
-				   + "FROM USR U, CONNECTION_USR C "
-				   + "WHERE C.connectionId = '%s' AND C.status = 'Accept' AND C.userId = U.userId", user, user);
-		   List<List<String>> userList = esql.executeQueryAndReturnResult(query);
-		   if(userList.isEmpty() == true){
-			   System.out.println("You have no friends.");
+		   if(esql.getGraph() != null && esql.getGraph().degree(user) == 0){
+			   out.println("You have no friends.");
+			   return null;
+		   }
+		   int friends = esql.executeQueryAndStream(FRIENDS_QUERY, UserPrinter(out, true, false), user, user);
+		   if(friends == 0){
+			   out.println("You have no friends.");
 			   return null;
 		   }
-		   PrintUser(userList, true, false);
 		   boolean usermenu = true;
 	       while(usermenu) {
-	         System.out.println("View Friends");
-	         System.out.println("---------");
-	         System.out.println("1. Goto Friend's Profile");
-	         System.out.println(".........................");
-	         System.out.println("9. Main Menu");
-	         switch (readChoice()){
+	         out.println("View Friends");
+	         out.println("---------");
+	         out.println("1. Goto Friend's Profile");
+	         out.println(".........................");
+	         out.println("9. Main Menu");
+	         switch (readChoice(in, out)){
 	            case 1: 
-	            	System.out.print("Enter Name of Friend: ");
+	            	out.print("Enter Name of Friend: ");
 	            	String Username = in.readLine();
-	            	String searchRet = SearchPeople(esql, user, Username);
+	            	String searchRet = SearchPeople(esql, in, out, user, Username);
 	            	if(searchRet == null){
-	            		System.out.println("Invalid User");
+	            		out.println("Invalid User");
 	            		break;
 	            	}
 	            	return user;
 
 	            case 9: usermenu = false; break;
-	            default : System.out.println("Unrecognized choice!"); break;
+	            default : out.println("Unrecognized choice!"); break;
 	         }
 	       }
 		   return user;
 	   }catch(Exception e){
-	         System.err.println (e.getMessage ());
+	         Metrics.error(e);
 	         return null;
 	   }
    }
    
-   public static void ViewFriendRequests(ProfNetwork esql, String authorisedUser){
+   static final String FRIEND_REQUESTS_QUERY =
+		   "SELECT U.userId, U.email, U.name, U.dateOfBirth "
+		   + "FROM USR U, CONNECTION_USR C "
+		   + "WHERE C.connectionId = ? AND C.status = 'Request' AND C.userId = U.userId";
+   static final String ACCEPT_REQUEST_QUERY =
+		   "UPDATE CONNECTION_USR "
+		   + "SET status = 'Accept' "
+		   + "WHERE userId = ? AND connectionId = ?";
+   static final String REJECT_REQUEST_QUERY =
+		   "UPDATE CONNECTION_USR "
+		   + "SET status = 'Reject' "
+		   + "WHERE userId = ? AND connectionId = ?";
+   
+   public static void ViewFriendRequests(ProfNetwork esql, BufferedReader in, PrintStream out, String authorisedUser){
 	   try{
-		   String query = String.format(
-				   "SELECT U.userId, U.email, U.name, U.dateOfBirth "
-				   + "FROM USR U, CONNECTION_USR C "
-				   + "WHERE C.connectionId = '%s' AND C.status = 'Request' AND C.userId = U.userId", authorisedUser);
-		   List<List<String>> userList = esql.executeQueryAndReturnResult(query);
-		   if(userList.isEmpty() == true){
-			   System.out.println("No Friend Requests");
+		   int requests = esql.executeQueryAndStream(FRIEND_REQUESTS_QUERY, UserPrinter(out, false, false), authorisedUser);
+		   if(requests == 0){
+			   out.println("No Friend Requests");
 			   return;
 		   }
-		   PrintUser(userList, false, false);
 		   boolean usermenu = true;
 	       while(usermenu) {
-		         System.out.println("View Friend requests");
-		         System.out.println("---------");
-		         System.out.println("1. Accept A Friend Request");
-		         System.out.println("1. Reject A Friend Request");
-		         System.out.println(".........................");
-		         System.out.println("9. Main Menu");
+		         out.println("View Friend requests");
+		         out.println("---------");
+		         out.println("1. Accept A Friend Request");
+		         out.println("1. Reject A Friend Request");
+		         out.println(".........................");
+		         out.println("9. Main Menu");
 		         String request = "";
-		         switch (readChoice()){
+		         switch (readChoice(in, out)){
 		            case 1: 
-		            	System.out.print("Enter Username of request to accept: ");
+		            	out.print("Enter Username of request to accept: ");
 		            	request = in.readLine();
-		            	query = String.format(
-		            			"UPDATE CONNECTION_USR "
-		            			+ "SET status = 'Accept' "
-		            			+ "WHERE userId = '%s' AND connectionId = '%s'", request, authorisedUser);
-		            	esql.executeUpdate(query);
-		            	System.out.println("Friend Request Accepted");
+		            	if(esql.executeUpdate(ACCEPT_REQUEST_QUERY, request, authorisedUser) > 0 && esql.getGraph() != null)
+		            		esql.getGraph().addEdge(request, authorisedUser);
+		            	out.println("Friend Request Accepted");
 		            	return;
 		            case 2: 
-		            	System.out.print("Enter Username of request to reject: ");
+		            	out.print("Enter Username of request to reject: ");
 		            	request = in.readLine();
-		            	query = String.format(
-		            			"UPDATE CONNECTION_USR "
-		            			+ "SET status = 'Reject' "
-		            			+ "WHERE userId = '%s' AND connectionId = '%s'", request, authorisedUser);
-		            	esql.executeUpdate(query);
-		            	System.out.println("Friend Request Rejected");
+		            	esql.executeUpdate(REJECT_REQUEST_QUERY, request, authorisedUser);
+		            	out.println("Friend Request Rejected");
 		            	return;	
 		            case 9: usermenu = false; break;
-		            default : System.out.println("Unrecognized choice!"); break;
+		            default : out.println("Unrecognized choice!"); break;
 		         }
 		       }
 		   return;
 	   }catch(Exception e){
 	         //System.err.println (e.getMessage ());
-	         System.out.println("Invalid Request, Returning to Main Menu");
+	         out.println("Invalid Request, Returning to Main Menu");
 	         return;
 	   }
    }
    
-   public static void ViewSelf(ProfNetwork esql, String authorisedUser){
+   public static void ViewSelf(ProfNetwork esql, BufferedReader in, PrintStream out, String authorisedUser){
 	   try{
-	       String query = String.format("SELECT userId, email, name, dateOfBirth FROM USR WHERE userId = '%s'", authorisedUser);
-	       List<List<String>> Users = esql.executeQueryAndReturnResult(query);
-	       if (!Users.isEmpty()){
-	    	   PrintUser(Users, true, true);
-	    	   query = String.format("SELECT company, role, location, startDate, endDate "
-	    	   		+ "FROM WORK_EXPR WHERE userId = '%s'", authorisedUser);
-	    	   List<List<String>> WorkList = esql.executeQueryAndReturnResult(query);
-	    	   PrintWorkExp(WorkList);
-	    	   query = String.format("SELECT instituitionName, major, degree, startDate, endDate "
-	    	   		+ "FROM EDUCATIONAL_DETAILS WHERE userId = '%s'", authorisedUser);
-	    	   List<List<String>> EduList= esql.executeQueryAndReturnResult(query);
-	    	   PrintEduDet(EduList);
+	       ProfileCache.Profile profile = esql.getProfiles().get(authorisedUser);
+	       if (profile != null){
+	    	   UserPrinter(out, true, true).handle(profile.user);
+	    	   PrintUserStats(out, UserStats(esql, authorisedUser), true);
+	    	   PrintWorkExp(out, profile.work);
+	    	   PrintEduDet(out, profile.education);
 	       }
 	   }catch(Exception e){
-		         System.err.println (e.getMessage());
+		         Metrics.error(e);
 		         return;
 	   }
    }
    
-   public static void UpdateProfile(ProfNetwork esql, String authorisedUser){
+   public static void UpdateProfile(ProfNetwork esql, BufferedReader in, PrintStream out, String authorisedUser){
 	   try{
-		   ViewSelf(esql, authorisedUser);
+		   ViewSelf(esql, in, out, authorisedUser);
 		   boolean usermenu = true;
 		   
 	       while(usermenu) {
-	         System.out.println("Update Your Profile");
-	         System.out.println("---------");
-	         System.out.println("1. Change Password");
-	         System.out.println("2. Add Work Experience");
-	         System.out.println("3. Add Educational Detail");
-	         System.out.println(".........................");
-	         System.out.println("9. Go Back");
-	         switch (readChoice()){
-	            case 1: ChangePassword(esql, authorisedUser); break;
-	            case 2: AddWork(esql,authorisedUser); ViewSelf(esql, authorisedUser); break;
-	            case 3: AddEdu(esql,authorisedUser); ViewSelf(esql, authorisedUser); break;
+	         out.println("Update Your Profile");
+	         out.println("---------");
+	         out.println("1. Change Password");
+	         out.println("2. Add Work Experience");
+	         out.println("3. Add Educational Detail");
+	         out.println(".........................");
+	         out.println("9. Go Back");
+	         switch (readChoice(in, out)){
+	            case 1: ChangePassword(esql, in, out, authorisedUser); break;
+	            case 2: AddWork(esql, in, out, authorisedUser); ViewSelf(esql, in, out, authorisedUser); break;
+	            case 3: AddEdu(esql, in, out, authorisedUser); ViewSelf(esql, in, out, authorisedUser); break;
 	            case 9: usermenu = false; break;
-	            default : System.out.println("Unrecognized choice!"); break;
+	            default : out.println("Unrecognized choice!"); break;
 	         }
 	       }
 		   return;
 	   }catch(Exception e){
-	         System.err.println (e.getMessage ());
+	         Metrics.error(e);
 	         return;
 	   }
    }
    
-   public static void NewMessage(ProfNetwork esql, String authorisedUser, String target){
+   // length of MESSAGE.contents, varchar(500)
+   static final int MAX_MESSAGE_LENGTH = 500;
+   
+   //msgId comes from the message sequence and is returned by the insert itself
+   static final String NEW_MESSAGE_QUERY =
+		   "INSERT INTO MESSAGE (senderID, receiverID, contents, status) "
+		   + "VALUES (?, ?, ?, 'Sent') RETURNING msgId";
+   
+   public static void NewMessage(ProfNetwork esql, BufferedReader in, PrintStream out, String authorisedUser, String target){
 	   try{
-		   System.out.println("Send New Message");
-		   System.out.println("---------");
+		   out.println("Send New Message");
+		   out.println("---------");
 		   String username = target;
 		   if(username == null){
-			   System.out.print("Enter a recepiant's username: ");
+			   out.print("Enter a recepiant's username: ");
 			   username = in.readLine();
 		   }
-		   System.out.print("Enter a message: ");
+		   out.print("Enter a message: ");
 		   String Contents = in.readLine();
-		   String query = String.format(
-				   "INSERT INTO MESSAGE (senderID, receiverID, contents, status) "
-				   + "VALUES ('%s','%s','%s', %s)", authorisedUser, username, Contents, "'Sent'");
-		   esql.executeUpdate(query);
-		   System.out.println("Messege Sent");
+		   if(Contents == null || Contents.length() > MAX_MESSAGE_LENGTH){
+			   out.println("Messages are limited to " + MAX_MESSAGE_LENGTH + " characters");
+			   return;
+		   }
+		   List<List<String>> sent = esql.executeQueryAndReturnResult(NEW_MESSAGE_QUERY, authorisedUser, username, Contents);
+		   out.println("Messege Sent (Message ID " + sent.get(0).get(0) + ")");
 		   return;
 	   }catch(Exception e){
-	         System.err.println (e.getMessage ());
+	         Metrics.error(e);
 	         return;
 	   }
    }
    
-   public static boolean CheckDepth(ProfNetwork esql, String authorisedUser, String username, String via1, String via2){
+   static final String FRIEND_IDS_QUERY =
+		   "SELECT C.connectionId FROM CONNECTION_USR C "
+		   + "WHERE C.userId = ? AND C.status = 'Accept' "
+		   + "UNION "
+		   + "SELECT C.userId FROM CONNECTION_USR C "
+		   + "WHERE C.connectionId = ? AND C.status = 'Accept'";
+   
+   /*
+    * Returns the userIds of user's accepted connections, from the
+    * connection graph when it is loaded
+    **/
+   public static List<String> FriendIds(ProfNetwork esql, String user) throws SQLException{
+	   if(esql.getGraph() != null)
+		   return Arrays.asList(esql.getGraph().friendsOf(user));
+	   final List<String> ids = new ArrayList<String>();
+	   esql.executeQueryAndStream(FRIEND_IDS_QUERY, new RowHandler(){
+		   public void handle(String[] row){
+			   ids.add(row[0]);
+		   }
+	   }, user, user);
+	   return ids;
+   }
+   
+   /*
+    * @return an insert of one message from the first parameter, with the
+    * contents of the second, to each of count existing users
+    **/
+   static String BroadcastQuery(int count){
+	   return "INSERT INTO MESSAGE (senderID, receiverID, contents, status) "
+			   + "SELECT ?, U.userId, ?, 'Sent' FROM USR U "
+			   + "WHERE U.userId IN (" + placeholders(count) + ") "
+			   + "RETURNING receiverId";
+   }
+   
+   /*
+    * Sends one message to a list of users, or to every friend, in a single
+    * transaction.  Each BATCH_SIZE recipients are written by one INSERT ...
+    * SELECT over an IN list.  Recipients that do not exist insert no row,
+    * they are found by what RETURNING leaves out and reported back instead
+    * of failing the whole broadcast.
+    **/
+   public static void BroadcastMessage(ProfNetwork esql, BufferedReader in, PrintStream out, String authorisedUser){
 	   try{
-		   String query = "";
-		   if(via1 == null && via2 == null){
-			   query = String.format(
-					   "SELECT C.userId, C.connectionId "
-					   + "FROM CONNECTION_USR C "
-					   + "WHERE C.userId = '%s' AND C.status = 'Accept'"
-					   + "UNION "
-					   + "SELECT C.userId, C.connectionId "
-					   + "FROM CONNECTION_USR C "
-					   + "WHERE C.connectionId = '%s' AND C.status = 'Accept'", authorisedUser, authorisedUser);
-			   List<List<String>> userList = esql.executeQueryAndReturnResult(query);
-			   if(userList.size() < 5)
-				   return true;
-			   for(int i = 0; i < userList.size(); i++) {
-				   if(userList.get(i).get(0) == authorisedUser){
-					   if(CheckDepth(esql,authorisedUser,username, userList.get(i).get(1), null))
-						   return true;
-				   }
-				   else{
-					   if(CheckDepth(esql,authorisedUser,username, userList.get(i).get(0), null))
-						   return true;
-				   }
-			   }
-			   return false;
+		   out.println("Message Many Users");
+		   out.println("---------");
+		   out.print("Enter recepiant usernames separated by commas (blank for all friends): ");
+		   String line = in.readLine();
+		   Set<String> recipients = new LinkedHashSet<String>();
+		   if(line == null || line.trim().isEmpty())
+			   recipients.addAll(FriendIds(esql, authorisedUser));
+		   else{
+			   for(String name : line.split(","))
+				   if(!name.trim().isEmpty())
+					   recipients.add(name.trim());
 		   }
-		   String q1 = "";
-		   if(via2 == null)
-			   q1 = via1;
-		   else
-			   q1 = via2;
-		   
-		   query = String.format(
-				   "SELECT C.userId, C.connectionId "
-				   + "FROM CONNECTION_USR C "
-				   + "WHERE C.userId = '%s' AND C.status = 'Accept' AND C.connectionId = '%s'"
-				   + "UNION "
-				   + "SELECT C.userId, C.connectionId "
-				   + "FROM CONNECTION_USR C "
-				   + "WHERE C.connectionId = '%s' AND C.status = 'Accept' AND C.userId = '%s'", q1, username, q1, username);
-		   int rows = esql.executeQuery(query);
-		   if(rows > 0)
-			   return true;
-		   if(via2 == null){
-		   	   query = String.format(
-				   "SELECT C.userId, C.connectionId "
-				   + "FROM CONNECTION_USR C "
-				   + "WHERE C.userId = '%s' AND C.status = 'Accept' AND C.connectionId != '%s'"
-				   + "UNION "
-				   + "SELECT C.userId, C.connectionId "
-				   + "FROM CONNECTION_USR C "
-				   + "WHERE C.connectionId = '%s' AND C.status = 'Accept' AND C.userId != '%s'", q1, authorisedUser, q1, authorisedUser);
-			   List<List<String>>userList = esql.executeQueryAndReturnResult(query);
-		   	   for(int i = 0; i < userList.size(); i++) {
-				   if(userList.get(i).get(0) == authorisedUser){
-					   if(CheckDepth(esql,authorisedUser,username, via1, userList.get(i).get(1)))
-						   return true;
-				   }
-				   else{
-					   if(CheckDepth(esql,authorisedUser,username, via1, userList.get(i).get(0)))
-						   return true;
-				   }
-			   }   
+		   if(recipients.isEmpty()){
+			   out.println("No recepiants");
+			   return;
 		   }
-		   else{
-			   /*
-		   	   query = String.format(
-				   "SELECT C.userId, C.connectionId "
-				   + "FROM CONNECTION_USR C "
-				   + "WHERE C.userId = '%s' AND C.status = 'Accept' AND C.connectionId != '%s' AND C.connectionId != '%s'"
-				   + "UNION "
-				   + "SELECT C.userId, C.connectionId "
-				   + "FROM CONNECTION_USR C "
-				   + "WHERE C.connectionId = '%s' AND C.status = 'Accept' AND C.userId != '%s' AND C.connectionId != '%s'", q1, authorisedUser, via1, q1, authorisedUser, via1);
-		   	   userList = esql.executeQueryAndReturnResult(query);*/
-			   return false;   
+		   out.print("Enter a message: ");
+		   String Contents = in.readLine();
+		   if(Contents == null || Contents.length() > MAX_MESSAGE_LENGTH){
+			   out.println("Messages are limited to " + MAX_MESSAGE_LENGTH + " characters");
+			   return;
 		   }
-		   return false;
+		   List<String> queries = new ArrayList<String>();
+		   List<Object[]> params = new ArrayList<Object[]>();
+		   List<String> all = new ArrayList<String>(recipients);
+		   for(int from = 0; from < all.size(); from += BATCH_SIZE){
+			   List<String> chunk = all.subList(from, Math.min(all.size(), from + BATCH_SIZE));
+			   queries.add(BroadcastQuery(chunk.size()));
+			   List<Object> values = new ArrayList<Object>();
+			   values.add(authorisedUser);
+			   values.add(Contents);
+			   values.addAll(chunk);
+			   params.add(values.toArray());
+		   }
+		   Set<String> sent = new HashSet<String>();
+		   for(List<String> row : esql.executeInTransaction(queries, params))
+			   sent.add(row.get(0));
+		   List<String> failed = new ArrayList<String>();
+		   for(String recipient : recipients){
+			   if(!sent.contains(recipient))
+				   failed.add(recipient);
+		   }
+		   out.println("Messege Sent to " + (recipients.size() - failed.size()) + " users");
+		   if(!failed.isEmpty())
+			   out.println("Unknown users, not sent: " + failed);
+		   return;
 	   }catch(Exception e){
-	         System.err.println (e.getMessage ());
+	         Metrics.error(e);
+	         out.println("Messages not sent");
+	         return;
+	   }
+   }
+   
+   // a user may send requests anywhere while they have fewer friends than this
+   static final int OPEN_REQUEST_FRIENDS = 5;
+   // otherwise the target has to be within this many accepted connections
+   static final int MAX_REQUEST_HOPS = 3;
+
+   static final String CHECK_DEPTH_QUERY =
+		   "WITH RECURSIVE reach(userId, depth) AS ( "
+		   + "SELECT CAST(? AS varchar), 0 "
+		   + "UNION "
+		   + "SELECT CASE WHEN C.userId = R.userId THEN C.connectionId ELSE C.userId END, R.depth + 1 "
+		   + "FROM reach R, CONNECTION_USR C "
+		   + "WHERE R.depth < ? AND C.status = 'Accept' "
+		   + "AND (C.userId = R.userId OR C.connectionId = R.userId)) "
+		   + "SELECT 1 "
+		   + "WHERE (SELECT COUNT(*) FROM CONNECTION_USR C "
+		   + "WHERE (C.userId = ? OR C.connectionId = ?) AND C.status = 'Accept') < ? "
+		   + "OR EXISTS (SELECT 1 FROM reach WHERE userId = ?)";
+
+   /*
+    * Checks whether username is in authorisedUser's connection range.
+    * Uses the in-memory connection graph when it is loaded, otherwise walks
+    * accepted connections in both directions with a recursive query, so the
+    * whole check is a single round trip bounded by MAX_REQUEST_HOPS.
+    * @return true if a request may be sent
+    **/
+   public static boolean CheckDepth(ProfNetwork esql, String authorisedUser, String username){
+	   FriendGraph graph = esql.getGraph();
+	   if(graph != null){
+		   return graph.degree(authorisedUser) < OPEN_REQUEST_FRIENDS
+				   || graph.withinHops(authorisedUser, username, MAX_REQUEST_HOPS);
+	   }
+	   try{
+		   int rows = esql.executeQuery(CHECK_DEPTH_QUERY, authorisedUser, MAX_REQUEST_HOPS,
+				   authorisedUser, authorisedUser, OPEN_REQUEST_FRIENDS, username);
+		   return rows > 0;
+	   }catch(Exception e){
+	         Metrics.error(e);
 	         return false;
 	   }
    }
    
-   public static void SendRequest(ProfNetwork esql, String authorisedUser, String target){
+   static final String REQUEST_EXISTS_QUERY =
+		   "SELECT 1 "
+		   + "FROM CONNECTION_USR C "
+		   + "WHERE (C.userId = ? AND C.connectionId = ?)";
+   static final String SEND_REQUEST_QUERY =
+		   "INSERT INTO CONNECTION_USR (userID, connectionID, status) "
+		   + "VALUES (?, ?, 'Request')";
+   static final String REQUEST_ACCEPTED_QUERY =
+		   "SELECT 1 "
+		   + "FROM CONNECTION_USR C "
+		   + "WHERE C.userId = ? AND C.connectionId = ? AND C.status = 'Accept'";
+   
+   public static void SendRequest(ProfNetwork esql, BufferedReader in, PrintStream out, String authorisedUser, String target){
 	   try{
-		   System.out.println("Search People");
-		   System.out.println("---------");
+		   out.println("Search People");
+		   out.println("---------");
 		   String username = target;
 		   if(username == null){
-			   System.out.print("Enter a Username: ");
+			   out.print("Enter a Username: ");
 			   username = in.readLine();
 		   }
-		   String query = String.format(
-				   "SELECT * "
-				   + "FROM CONNECTION_USR C "
-				   + "WHERE (C.userId = '%s' AND C.connectionId = '%s')", authorisedUser, username);
-		   int numRows = esql.executeQuery(query);
+		   int numRows = esql.executeQuery(REQUEST_EXISTS_QUERY, authorisedUser, username);
 		   if(numRows > 0){
-			   System.out.println("You already have a friend request for this user");
+			   out.println("You already have a friend request for this user");
 			   return;
 		   }
 		   //If the target already has a pending friend request with the user
 		   //Insert the request into the table (a trigger will automatically approve the existing one isntead)
-		   query = String.format(
-				   "SELECT * "
-				   + "FROM CONNECTION_USR C "
-				   + "WHERE (C.userId = '%s' AND C.connectionId = '%s')", username, authorisedUser);
-		   numRows = esql.executeQuery(query);
+		   numRows = esql.executeQuery(REQUEST_EXISTS_QUERY, username, authorisedUser);
 		   if(numRows > 0){
-			   query = String.format(
-					   "INSERT INTO CONNECTION_USR (userID, connectionID, status) "
-					   + "VALUES ('%s', '%s', 'Request')", authorisedUser, username );
-			   esql.executeUpdate(query);
-			   System.out.println("Friend Request Sent");
+			   //Their request was already accepted, a new request would only add a stray row
+			   if(esql.executeQuery(REQUEST_ACCEPTED_QUERY, username, authorisedUser) > 0){
+				   out.println("You are already friends with this user");
+				   return;
+			   }
+			   esql.executeUpdate(SEND_REQUEST_QUERY, authorisedUser, username);
+			   //The trigger skips the insert, so check whether their request was accepted
+			   if(esql.executeQuery(REQUEST_ACCEPTED_QUERY, username, authorisedUser) > 0){
+				   if(esql.getGraph() != null)
+					   esql.getGraph().addEdge(username, authorisedUser);
+				   out.println("Friend Request Accepted");
+			   }
+			   else
+				   out.println("Friend Request Sent");
 			   return;
 			   
 		   }
-		   if(CheckDepth(esql, authorisedUser, username, null, null) == true){
-			   query = String.format(
-					   "INSERT INTO CONNECTION_USR (userID, connectionID, status) "
-					   + "VALUES ('%s', '%s', 'Request')", authorisedUser, username);
-			   esql.executeUpdate(query);
-			   System.out.println("Friend Request Sent");
+		   if(CheckDepth(esql, authorisedUser, username) == true){
+			   esql.executeUpdate(SEND_REQUEST_QUERY, authorisedUser, username);
+			   out.println("Friend Request Sent");
 			   return;
 		   }
 		   else{
-			   System.out.println("That user is out of your connection range, unable to send request");
+			   out.println("That user is out of your connection range, unable to send request");
 			   return; 
 		   }
 	   }catch(Exception e){
-	         System.err.println (e.getMessage ());
+	         Metrics.error(e);
 	         return;
 	   }
    }
    
-   public static void PrintMessages(List<List<String>> msgList){
+   public static void PrintMessages(PrintStream out, String[] msg){
 	   try{
 		   String Headder1 = String.format("%126s", "").replace(' ', '-');
 		   
-		   for(int i = 0; i < msgList.size(); i++){
-			   System.out.println(Headder1);
-			   String formattedLine = String.format("| %-15s | %-105s", "Message ID", msgList.get(i).get(0)) + "|";
-			   System.out.println(formattedLine);
-			   formattedLine = String.format("| %-15s | %-105s", "Sender", msgList.get(i).get(1)) + "|";
-			   System.out.println(formattedLine);
-			   formattedLine = String.format("| %-15s | %-105s", "Receiver", msgList.get(i).get(2)) + "|";
-			   System.out.println(formattedLine);
-			   formattedLine = String.format("| %-15s | %-105s", "Time Stamp", msgList.get(i).get(4)) + "|";
-			   System.out.println(formattedLine);
-			   formattedLine = String.format("| %-15s | %-105s", "Status", msgList.get(i).get(5)) + "|";
-			   System.out.println(formattedLine);
-			   
-			   System.out.println(Headder1);
-			   String msg = msgList.get(i).get(3).trim();
-
-			   int jOld = 0;
-			   int j = 0;
-			   while (j + 90 < msg.length() && (j = msg.lastIndexOf(" ", j + 90)) != -1) {
-			       formattedLine = String.format("| %-123s", msg.substring(jOld,j)) + "|";
-				   System.out.println(formattedLine);
-				   jOld = j;
-			       
-			   }
-			   if(j < msg.length()){
-			       formattedLine = String.format("| %-123s", msg.substring(j)) + "|";
-				   System.out.println(formattedLine);
-			   }
-			   System.out.println(Headder1);
-			   System.out.println("");
-		   } 
+		   out.println(Headder1);
+		   String formattedLine = String.format("| %-15s | %-105s", "Message ID", msg[0]) + "|";
+		   out.println(formattedLine);
+		   formattedLine = String.format("| %-15s | %-105s", "Sender", msg[1]) + "|";
+		   out.println(formattedLine);
+		   formattedLine = String.format("| %-15s | %-105s", "Receiver", msg[2]) + "|";
+		   out.println(formattedLine);
+		   formattedLine = String.format("| %-15s | %-105s", "Time Stamp", msg[4]) + "|";
+		   out.println(formattedLine);
+		   formattedLine = String.format("| %-15s | %-105s", "Status", msg[5]) + "|";
+		   out.println(formattedLine);
+		   
+		   out.println(Headder1);
+		   PrintWrapped(out, msg[3]);
+		   out.println(Headder1);
+		   out.println("");
 	   }catch(Exception e){
-	         System.err.println (e.getMessage ());
+	         Metrics.error(e);
 	         return;
 	   }	   
    }
    
+   /*
+    * Prints a message body in lines of at most 90 characters, broken at
+    * spaces.  The lines are copied from contents into one padded buffer
+    * instead of a substring and a formatted string per line, and trailing
+    * blanks left by the old char(500) column are skipped without trimming
+    * a copy.
+    **/
+   public static void PrintWrapped(PrintStream out, String contents){
+	   StringBuilder line = new StringBuilder(126);
+	   int end = contents.length();
+	   while(end > 0 && contents.charAt(end - 1) == ' ')
+		   end--;
+	   int start = 0;
+	   while(start < end && contents.charAt(start) == ' ')
+		   start++;
+	   while(start < end){
+		   int stop = Math.min(end, start + 90);
+		   if(stop < end){
+			   int space = contents.lastIndexOf(' ', stop);
+			   if(space > start)
+				   stop = space;
+		   }
+		   line.setLength(0);
+		   line.append("| ").append(contents, start, stop);
+		   while(line.length() < 125)
+			   line.append(' ');
+		   out.println(line.append('|'));
+		   start = stop;
+		   while(start < end && contents.charAt(start) == ' ')
+			   start++;
+	   }
+   }
+   
+   /*
+    * Prints each streamed message as it arrives
+    **/
+   public static RowHandler MessagePrinter(final PrintStream out){
+	   return new RowHandler(){
+		   public void handle(String[] row){
+			   PrintMessages(out, row);
+		   }
+	   };
+   }
+   
    
-   public static void ViewMessages(ProfNetwork esql, String authorisedUser){
+   // messages shown per inbox page unless the session changes it
+   static final int INBOX_PAGE_SIZE = Integer.getInteger("profnetwork.inbox.pageSize", 10);
+
+   // keyset cursor that sorts before every message, used for the first page
+   static final String NEWEST_TIME = "infinity";
+   static final int NEWEST_ID = Integer.MAX_VALUE;
+
+   /*
+    * Fetches one inbox page of sent and received messages next to the
+    * (sendTime, msgId) cursor, newest first.  Each side of the UNION is
+    * read in index order and cut at the page size, so the cost depends on
+    * the page size and not on the size of the inbox.
+    * @older true for the page after the cursor, false for the one before it
+    * @return the page's messages, newest first
+    **/
+   public static List<String[]> FetchInboxPage(ProfNetwork esql, String authorisedUser,
+		   String cursorTime, int cursorId, boolean older, int pageSize) throws SQLException{
+	   return FetchThreadPage(esql, authorisedUser, null, cursorTime, cursorId, older, pageSize);
+   }
+   
+   /*
+    * @return the query behind FetchThreadPage, with the other user's
+    * placeholders when pair is set, paging back in time when older is set
+    **/
+   static String ThreadPageQuery(boolean pair, boolean older){
+	   String cmp = older ? "<" : ">";
+	   String dir = older ? "DESC" : "ASC";
+	   return "SELECT * FROM ("
+			   + "(SELECT M.msgId, M.senderId, M.receiverId, M.contents, M.sendTime, M.status "
+			   + "FROM MESSAGE M "
+			   + "WHERE M.senderId = ? " + (pair ? "AND M.receiverId = ? " : "")
+			   + "AND M.deleteStatus IN (0, 2) "
+			   + "AND (M.sendTime, M.msgId) " + cmp + " (CAST(? AS timestamp), ?) "
+			   + "ORDER BY M.sendTime " + dir + ", M.msgId " + dir + " LIMIT ?) "
+			   + "UNION "
+			   + "(SELECT M.msgId, M.senderId, M.receiverId, M.contents, M.sendTime, M.status "
+			   + "FROM MESSAGE M "
+			   + "WHERE M.receiverId = ? " + (pair ? "AND M.senderId = ? " : "")
+			   + "AND M.deleteStatus IN (0, 1) "
+			   + "AND (M.sendTime, M.msgId) " + cmp + " (CAST(? AS timestamp), ?) "
+			   + "ORDER BY M.sendTime " + dir + ", M.msgId " + dir + " LIMIT ?)"
+			   + ") P ORDER BY sendTime " + dir + ", msgId " + dir + " LIMIT ?";
+   }
+   
+   /*
+    * Fetches one page of the conversation between the user and other, the
+    * same way FetchInboxPage pages the whole inbox.  Both sides are read on
+    * message_pair_idx.  A null other pages the whole inbox.
+    **/
+   public static List<String[]> FetchThreadPage(ProfNetwork esql, String authorisedUser, String other,
+		   String cursorTime, int cursorId, boolean older, int pageSize) throws SQLException{
+	   String query = ThreadPageQuery(other != null, older);
+	   List<Object> params = new ArrayList<Object>();
+	   params.add(authorisedUser);
+	   if(other != null)
+		   params.add(other);
+	   params.addAll(Arrays.<Object>asList(cursorTime, cursorId, pageSize, authorisedUser));
+	   if(other != null)
+		   params.add(other);
+	   params.addAll(Arrays.<Object>asList(cursorTime, cursorId, pageSize, pageSize));
+	   final List<String[]> page = new ArrayList<String[]>();
+	   final String user = authorisedUser;
+	   final WriteBehindQueue writes = esql.getWrites();
+	   esql.executeQueryAndStream(query, new RowHandler(){
+		   public void handle(String[] row){
+			   //leave out messages whose deletion has not been written yet
+			   if(!writes.isDeleting(user, Integer.parseInt(row[0])))
+				   page.add(row.clone());
+		   }
+	   }, params.toArray());
+	   if(!older)
+		   Collections.reverse(page);
+	   return page;
+   }
+   
+   public static void ViewMessages(ProfNetwork esql, BufferedReader in, PrintStream out, String authorisedUser){
 	   try{
-		   String query = String.format(
-				   "SELECT M.msgId, M.senderId, M.receiverId, M.contents, M. sendTime, M.status "
-				   + "FROM MESSAGE M "
-				   + "WHERE M.senderId = '%s' AND deleteStatus != 1 AND deleteStatus < 3 "
-				   + "UNION "
-				   + "SELECT M.msgId, M.senderId, M.receiverId, M.contents, M. sendTime, M.status "
-				   + "FROM MESSAGE M "
-				   + "WHERE M.receiverId = '%s' AND deleteStatus < 2 ", authorisedUser, authorisedUser);
-		   List<List<String>> msgList = esql.executeQueryAndReturnResult(query);
-		   PrintMessages(msgList);
-		   //Update received message status to show receiving
-		   query = String.format(
-					"UPDATE MESSAGE "
-					+ "SET status = 'Delivered' "
-					+ "WHERE receiverId = '%s' AND status = 'sent'", authorisedUser);
-		   esql.executeUpdate(query);
+		   int pageSize = INBOX_PAGE_SIZE;
+		   List<String[]> page = FetchInboxPage(esql, authorisedUser, NEWEST_TIME, NEWEST_ID, true, pageSize);
+		   if(page.isEmpty())
+			   out.println("No Messages");
 		   String input = "";
+		   boolean show = true;
 		   boolean usermenu = true;
 		   while(usermenu) {
-		         System.out.println("View Messages");
-		         System.out.println("---------");
-		         System.out.println("1. Delete A Message");
-		         System.out.println(".........................");
-		         System.out.println("9. Main Menu");
-		         String request = "";
-		         switch (readChoice()){
+			     if(show && !page.isEmpty())
+			    	 ShowInboxPage(esql, out, authorisedUser, page);
+			     show = false;
+		         out.println("View Messages");
+		         out.println("---------");
+		         out.println("1. Delete A Message");
+		         out.println("2. Next Page (older)");
+		         out.println("3. Previous Page (newer)");
+		         out.println("4. Change Page Size (" + pageSize + ")");
+		         out.println("5. Delete Several Messages");
+		         out.println("6. Delete All Messages");
+		         out.println("7. View Conversations");
+		         out.println(".........................");
+		         out.println("9. Main Menu");
+		         List<String[]> turned = null;
+		         switch (readChoice(in, out)){
 		            case 1: 
-		            	System.out.print("Enter the Message ID of the message you want to delete: ");
+		            	out.print("Enter the Message ID of the message you want to delete: ");
 		            	input = in.readLine();
-		            	query = String.format(
-		            			"UPDATE MESSAGE "
-		            			+ "SET deleteStatus = deleteStatus + 1 "
-		            			+ "WHERE senderId = '%s' AND msgId = '%s'", authorisedUser, input);
-		            	esql.executeUpdate(query);
-		            	query = String.format(
-		            			"UPDATE MESSAGE "
-		            			+ "SET deleteStatus = deleteStatus + 2 "
-		            			+ "WHERE receiverId = '%s' AND msgId = '%s'", authorisedUser, input);
-		            	esql.executeUpdate(query);
-		            	System.out.println("Message Deleted");
+		            	int msgId = Integer.parseInt(input.trim());
+		            	//written in the background, see WriteBehindQueue
+		            	esql.getWrites().delete(authorisedUser, msgId);
+		            	out.println("Message Deleted");
 		            	return;
+		            case 2:
+		            	if(!page.isEmpty()){
+		            		String[] last = page.get(page.size() - 1);
+		            		turned = FetchInboxPage(esql, authorisedUser, last[4], Integer.parseInt(last[0]), true, pageSize);
+		            	}
+		            	if(turned == null || turned.isEmpty()){
+		            		out.println("No older messages");
+		            		break;
+		            	}
+		            	page = turned;
+		            	show = true;
+		            	break;
+		            case 3:
+		            	if(!page.isEmpty()){
+		            		String[] first = page.get(0);
+		            		turned = FetchInboxPage(esql, authorisedUser, first[4], Integer.parseInt(first[0]), false, pageSize);
+		            	}
+		            	if(turned == null || turned.isEmpty()){
+		            		out.println("No newer messages");
+		            		break;
+		            	}
+		            	page = turned;
+		            	show = true;
+		            	break;
+		            case 4:
+		            	out.print("Enter the number of messages per page: ");
+		            	input = in.readLine();
+		            	pageSize = Math.max(1, Integer.parseInt(input.trim()));
+		            	page = FetchInboxPage(esql, authorisedUser, NEWEST_TIME, NEWEST_ID, true, pageSize);
+		            	show = true;
+		            	break;
+		            case 5:
+		            	out.print("Enter the Message IDs to delete separated by commas: ");
+		            	input = in.readLine();
+		            	int deleted = 0;
+		            	for(String id : input.split(",")){
+		            		if(id.trim().isEmpty())
+		            			continue;
+		            		esql.getWrites().delete(authorisedUser, Integer.parseInt(id.trim()));
+		            		deleted++;
+		            	}
+		            	out.println(deleted + " Messages Deleted");
+		            	return;
+		            case 6:
+		            	out.print("Delete every message you sent and received? (y/n): ");
+		            	input = in.readLine();
+		            	if(input == null || !input.trim().equalsIgnoreCase("y"))
+		            		break;
+		            	out.println(DeleteAllMessages(esql, authorisedUser) + " Messages Deleted");
+		            	return;
+		            case 7: ViewConversations(esql, in, out, authorisedUser); return;
 		            case 9: usermenu = false; break;
-		            default : System.out.println("Unrecognized choice!"); break;
+		            default : out.println("Unrecognized choice!"); break;
 		         }
 		       }
 		   return;
 	   }catch(Exception e){
-	         System.err.println (e.getMessage ());
+	         Metrics.error(e);
+	         return;
+	   }
+   }
+   
+   // conversations shown per page of the conversation list
+   static final int CONVERSATION_PAGE_SIZE = Integer.getInteger("profnetwork.conversations.pageSize", 10);
+   
+   static final String CONVERSATIONS_QUERY =
+		   "SELECT C.otherId, C.lastTime, C.unreadCount, C.lastMsgId, M.contents "
+		   + "FROM CONVERSATION C, MESSAGE M "
+		   + "WHERE C.userId = ? AND M.msgId = C.lastMsgId "
+		   + "AND (C.lastTime, C.lastMsgId) < (CAST(? AS timestamp), ?) "
+		   + "ORDER BY C.lastTime DESC, C.lastMsgId DESC LIMIT ?";
+   
+   /*
+    * Fetches one page of the user's conversations after the (lastTime,
+    * lastMsgId) cursor, most recent first, with the latest message of each.
+    * The rows come from CONVERSATION in conversation_recent_idx order, so
+    * the cost depends on the page size and not on the number of messages.
+    **/
+   public static List<String[]> FetchConversations(ProfNetwork esql, String authorisedUser,
+		   String cursorTime, int cursorId, int pageSize) throws SQLException{
+	   final List<String[]> page = new ArrayList<String[]>();
+	   esql.executeQueryAndStream(CONVERSATIONS_QUERY, new RowHandler(){
+		   public void handle(String[] row){
+			   page.add(row.clone());
+		   }
+	   }, authorisedUser, cursorTime, cursorId, pageSize);
+	   return page;
+   }
+   
+   public static void PrintConversations(PrintStream out, List<String[]> page){
+	   String Headder1 = String.format("%126s", "").replace(' ', '-');
+	   out.println(Headder1);
+	   out.println(String.format("| %-20s | %-23s | %-6s | %-64s |", "With", "Last Message", "Unread", "Preview"));
+	   out.println(Headder1);
+	   for(int i = 0; i < page.size(); i++){
+		   String[] conv = page.get(i);
+		   String preview = conv[4].trim().replace('\n', ' ');
+		   if(preview.length() > 64)
+			   preview = preview.substring(0, 61) + "...";
+		   out.println(String.format("| %-20s | %-23s | %-6s | %-64s |", conv[0], conv[1], conv[2], preview));
+	   }
+	   out.println(Headder1);
+   }
+   
+   public static void ViewConversations(ProfNetwork esql, BufferedReader in, PrintStream out, String authorisedUser){
+	   try{
+		   List<String[]> page = FetchConversations(esql, authorisedUser, NEWEST_TIME, NEWEST_ID, CONVERSATION_PAGE_SIZE);
+		   if(page.isEmpty()){
+			   out.println("No Conversations");
+			   return;
+		   }
+		   boolean show = true;
+		   boolean usermenu = true;
+		   while(usermenu) {
+			     if(show)
+			    	 PrintConversations(out, page);
+			     show = false;
+		         out.println("View Conversations");
+		         out.println("---------");
+		         out.println("1. Open a Conversation");
+		         out.println("2. Next Page (older)");
+		         out.println("3. First Page");
+		         out.println(".........................");
+		         out.println("9. Go Back");
+		         switch (readChoice(in, out)){
+		            case 1:
+		            	out.print("Enter a Username: ");
+		            	String other = in.readLine();
+		            	if(other == null)
+		            		return;
+		            	ViewConversation(esql, in, out, authorisedUser, other.trim());
+		            	return;
+		            case 2:
+		            	String[] last = page.get(page.size() - 1);
+		            	List<String[]> turned = FetchConversations(esql, authorisedUser, last[1], Integer.parseInt(last[3]), CONVERSATION_PAGE_SIZE);
+		            	if(turned.isEmpty()){
+		            		out.println("No older conversations");
+		            		break;
+		            	}
+		            	page = turned;
+		            	show = true;
+		            	break;
+		            case 3:
+		            	page = FetchConversations(esql, authorisedUser, NEWEST_TIME, NEWEST_ID, CONVERSATION_PAGE_SIZE);
+		            	if(page.isEmpty())
+		            		return;
+		            	show = true;
+		            	break;
+		            case 9: usermenu = false; break;
+		            default : out.println("Unrecognized choice!"); break;
+		         }
+		   }
+		   return;
+	   }catch(Exception e){
+	         Metrics.error(e);
 	         return;
 	   }
    }
    
-   public static void PrintWorkExp(List<List<String>> WorkList){
+   /*
+    * Shows the messages between the user and other a page at a time, newest
+    * first, marking the received ones delivered like the inbox does
+    **/
+   public static void ViewConversation(ProfNetwork esql, BufferedReader in, PrintStream out, String authorisedUser, String other){
+	   try{
+		   List<String[]> page = FetchThreadPage(esql, authorisedUser, other, NEWEST_TIME, NEWEST_ID, true, INBOX_PAGE_SIZE);
+		   if(page.isEmpty()){
+			   out.println("No Messages with " + other);
+			   return;
+		   }
+		   boolean show = true;
+		   boolean usermenu = true;
+		   while(usermenu) {
+			     if(show)
+			    	 ShowInboxPage(esql, out, authorisedUser, page);
+			     show = false;
+		         out.println("Conversation with " + other);
+		         out.println("---------");
+		         out.println("1. Next Page (older)");
+		         out.println("2. Previous Page (newer)");
+		         out.println("3. Reply");
+		         out.println(".........................");
+		         out.println("9. Go Back");
+		         List<String[]> turned;
+		         switch (readChoice(in, out)){
+		            case 1:
+		            	String[] last = page.get(page.size() - 1);
+		            	turned = FetchThreadPage(esql, authorisedUser, other, last[4], Integer.parseInt(last[0]), true, INBOX_PAGE_SIZE);
+		            	if(turned.isEmpty()){
+		            		out.println("No older messages");
+		            		break;
+		            	}
+		            	page = turned;
+		            	show = true;
+		            	break;
+		            case 2:
+		            	String[] first = page.get(0);
+		            	turned = FetchThreadPage(esql, authorisedUser, other, first[4], Integer.parseInt(first[0]), false, INBOX_PAGE_SIZE);
+		            	if(turned.isEmpty()){
+		            		out.println("No newer messages");
+		            		break;
+		            	}
+		            	page = turned;
+		            	show = true;
+		            	break;
+		            case 3: NewMessage(esql, in, out, authorisedUser, other); return;
+		            case 9: usermenu = false; break;
+		            default : out.println("Unrecognized choice!"); break;
+		         }
+		   }
+		   return;
+	   }catch(Exception e){
+	         Metrics.error(e);
+	         return;
+	   }
+   }
+   
+   static final String DELETE_ALL_QUERY =
+		   "UPDATE MESSAGE SET deleteStatus = deleteStatus "
+		   + "| (CASE WHEN senderId = ? THEN 1 ELSE 0 END) "
+		   + "| (CASE WHEN receiverId = ? THEN 2 ELSE 0 END) "
+		   + "WHERE (senderId = ? AND deleteStatus IN (0, 2)) "
+		   + "OR (receiverId = ? AND deleteStatus IN (0, 1))";
+   
+   /*
+    * Deletes every message on the user's side in one statement, setting the
+    * sender bit (1) of the messages they sent and the receiver bit (2) of the
+    * messages they received.  Rows with the bit already set are not touched.
+    * @return the number of messages deleted
+    **/
+   public static int DeleteAllMessages(ProfNetwork esql, String authorisedUser) throws SQLException{
+	   return esql.executeUpdate(DELETE_ALL_QUERY, authorisedUser, authorisedUser, authorisedUser, authorisedUser);
+   }
+   
+   /*
+    * Prints an inbox page and marks the received messages on it as delivered.
+    * The status writes are queued for the background flusher, so the menu
+    * does not wait for them.
+    **/
+   public static void ShowInboxPage(ProfNetwork esql, PrintStream out, String authorisedUser, List<String[]> page){
+	   List<Integer> undelivered = new ArrayList<Integer>();
+	   for(int i = 0; i < page.size(); i++){
+		   String[] msg = page.get(i);
+		   PrintMessages(out, msg);
+		   if(authorisedUser.equals(msg[2]) && "Sent".equals(msg[5].trim()))
+			   undelivered.add(Integer.parseInt(msg[0]));
+	   }
+	   //Update received message status to show receiving
+	   esql.getWrites().delivered(undelivered);
+   }
+   
+   public static void PrintWorkExp(PrintStream out, List<List<String>> WorkList){
 	   try{
 		   String Headder1 = String.format("%126s", "").replace(' ', '-');
 		   String Headder2 = String.format("| %-123s", "Work Experience") + "|";
-		   System.out.println(Headder1);
-		   System.out.println(Headder2);
-		   System.out.println(Headder1);
+		   out.println(Headder1);
+		   out.println(Headder2);
+		   out.println(Headder1);
 		   
 		   String titleLine = String.format("| %-20s | %-40s | %-30s | %-10s | %-10s |",
 				   "Company Name",
@@ -831,8 +1797,8 @@ public class ProfNetwork {
 				   "Start Date",
 				   "End Date");
 
-		   System.out.println(titleLine);
-		   System.out.println(Headder1);
+		   out.println(titleLine);
+		   out.println(Headder1);
 		   
 		   for(int i = 0; i < WorkList.size(); i++){
 			   String formattedLine = String.format("| %-20s | %-40s | %-30s | %s | %s |",
@@ -842,24 +1808,24 @@ public class ProfNetwork {
 					   WorkList.get(i).get(3).trim(),
 					   WorkList.get(i).get(4).trim());
 
-			   System.out.println(formattedLine);
+			   out.println(formattedLine);
 		   }
-		   System.out.println(Headder1);
+		   out.println(Headder1);
 		   return;
 	   }catch(Exception e){
-	         System.err.println (e.getMessage ());
+	         Metrics.error(e);
 	         return;
 	   }
 		   
    }
    
-   public static void PrintEduDet(List<List<String>> EduList){
+   public static void PrintEduDet(PrintStream out, List<List<String>> EduList){
 	   try{
 		   String Headder1 = String.format("%126s", "").replace(' ', '-');
 		   String Headder2 = String.format("| %-123s", "Educational Details") + "|";
-		   System.out.println(Headder1);
-		   System.out.println(Headder2);
-		   System.out.println(Headder1);
+		   out.println(Headder1);
+		   out.println(Headder2);
+		   out.println(Headder1);
 		   
 		   String titleLine = String.format("| %-20s | %-40s | %-30s | %-10s | %-10s |",
 				   "Institution Name",
@@ -868,8 +1834,8 @@ public class ProfNetwork {
 				   "Start Date",
 				   "End Date");
 
-		   System.out.println(titleLine);
-		   System.out.println(Headder1);
+		   out.println(titleLine);
+		   out.println(Headder1);
 		   
 		   for(int i = 0; i < EduList.size(); i++){
 			   String formattedLine = String.format("| %-20s | %-40s | %-30s | %s | %s |",
@@ -879,179 +1845,464 @@ public class ProfNetwork {
 					   EduList.get(i).get(3).trim(),
 					   EduList.get(i).get(4).trim());
 
-			   System.out.println(formattedLine);
+			   out.println(formattedLine);
 		   }
-		   System.out.println(Headder1);
+		   out.println(Headder1);
 		   return;
 	   }catch(Exception e){
-	         System.err.println (e.getMessage ());
+	         Metrics.error(e);
 	         return;
 	   }	   
    }
    
-   public static void PrintUser(List<List<String>> UserList, boolean isFriend, boolean everything){
+   public static void PrintUser(PrintStream out, String[] user, boolean isFriend, boolean everything){
 	   try{
 		   String Headder1 = String.format("%126s", "").replace(' ', '-');
-		   System.out.println(Headder1);
-		   
-		   for(int i = 0; i < UserList.size(); i++){
-			   String formattedLine = String.format("| %-15s | %-105s", "Username", UserList.get(i).get(0)) + "|";
-			   System.out.println(formattedLine);
-			   if(everything){
-				   formattedLine = String.format("| %-15s | %-105s", "email", UserList.get(i).get(1)) + "|";
-				   System.out.println(formattedLine);
-			   }
-			   formattedLine = String.format("| %-15s | %-105s", "Name", UserList.get(i).get(2)) + "|";
-			   System.out.println(formattedLine);
-			   if(isFriend || everything){
-				   formattedLine = String.format("| %-15s | %-105s", "Date of Birth", UserList.get(i).get(3)) + "|";
-				   System.out.println(formattedLine);
-			   }
-			   System.out.println(Headder1);
+		   String formattedLine = String.format("| %-15s | %-105s", "Username", user[0]) + "|";
+		   out.println(formattedLine);
+		   if(everything){
+			   formattedLine = String.format("| %-15s | %-105s", "email", user[1]) + "|";
+			   out.println(formattedLine);
 		   }
-
+		   formattedLine = String.format("| %-15s | %-105s", "Name", user[2]) + "|";
+		   out.println(formattedLine);
+		   if(isFriend || everything){
+			   formattedLine = String.format("| %-15s | %-105s", "Date of Birth", user[3]) + "|";
+			   out.println(formattedLine);
+		   }
+		   out.println(Headder1);
 		   return;
 	   }catch(Exception e){
-	         System.err.println (e.getMessage ());
+	         Metrics.error(e);
 	         return;
 	   }	
    }
    
-   public static String SearchPeople(ProfNetwork esql, String authorisedUser, String target){
+   static final String USER_STATS_QUERY =
+		   "SELECT friendCount, pendingCount, unreadCount "
+		   + "FROM USR_STATS "
+		   + "WHERE userId = ?";
+   static final String UNREAD_COUNT_QUERY =
+		   "SELECT COUNT(*) "
+		   + "FROM MESSAGE "
+		   + "WHERE receiverId = ? AND status = 'Sent' AND deleteStatus IN (0, 1)";
+   
+   /*
+    * Reads the friend, pending request and unread message counts kept in
+    * USR_STATS by the triggers, or null if the user has no row
+    **/
+   public static int[] UserStats(ProfNetwork esql, String user){
+	   try{
+		   List<List<String>> rows = esql.executeQueryAndReturnResult(USER_STATS_QUERY, user);
+		   if(rows.isEmpty())
+			   return null;
+		   List<String> row = rows.get(0);
+		   return new int[]{ Integer.parseInt(row.get(0).trim()),
+				   Integer.parseInt(row.get(1).trim()),
+				   Integer.parseInt(row.get(2).trim()) };
+	   }catch(Exception e){
+	         Metrics.error(e);
+	         return null;
+	   }
+   }
+   
+   /*
+    * @return the number of messages the user has not read yet, from USR_STATS
+    * or, for users without a row, counted on message_receiver_sent_idx
+    **/
+   public static int UnreadCount(ProfNetwork esql, String user){
+	   int[] stats = UserStats(esql, user);
+	   if(stats != null)
+		   return stats[2];
 	   try{
-		   System.out.println("Search People");
-		   System.out.println("---------");
+		   List<List<String>> rows = esql.executeQueryAndReturnResult(UNREAD_COUNT_QUERY, user);
+		   return Integer.parseInt(rows.get(0).get(0).trim());
+	   }catch(Exception e){
+	         Metrics.error(e);
+	         return 0;
+	   }
+   }
+   
+   public static void PrintUserStats(PrintStream out, int[] stats, boolean own){
+	   if(stats == null)
+		   return;
+	   String Headder1 = String.format("%126s", "").replace(' ', '-');
+	   out.println(String.format("| %-15s | %-105s", "Friends", stats[0]) + "|");
+	   if(own){
+		   out.println(String.format("| %-15s | %-105s", "Requests", stats[1]) + "|");
+		   out.println(String.format("| %-15s | %-105s", "Unread", stats[2]) + "|");
+	   }
+	   out.println(Headder1);
+   }
+   
+   /*
+    * Prints each streamed user as it arrives, with the table border
+    * above the first one
+    **/
+   public static RowHandler UserPrinter(final PrintStream out, final boolean isFriend, final boolean everything){
+	   return new RowHandler(){
+		   boolean first = true;
+		   public void handle(String[] row){
+			   if(first){
+				   out.println(String.format("%126s", "").replace(' ', '-'));
+				   first = false;
+			   }
+			   PrintUser(out, row, isFriend, everything);
+		   }
+	   };
+   }
+   
+   public static String SearchPeople(ProfNetwork esql, BufferedReader in, PrintStream out, String authorisedUser, String target){
+	   try{
+		   out.println("Search People");
+		   out.println("---------");
 		   String username = target;
 		   if(username == null){
-			   System.out.print("Enter a Username: ");
+			   out.print("Enter a Username: ");
 			   username = in.readLine();
 		   }
 		   
-	       String query = String.format("SELECT userId, email, name, dateOfBirth FROM USR WHERE userId = '%s'", username);
-	       List<List<String>> Users = esql.executeQueryAndReturnResult(query);
-	       if (!Users.isEmpty()){
-	    	   PrintUser(Users, false, false);
-	    	   query = String.format("SELECT company, role, location, startDate, endDate "
-	    	   		+ "FROM WORK_EXPR WHERE userId = '%s'", username);
-	    	   List<List<String>> WorkList = esql.executeQueryAndReturnResult(query);
-	    	   PrintWorkExp(WorkList);
-	    	   query = String.format("SELECT instituitionName, major, degree, startDate, endDate "
-	    	   		+ "FROM EDUCATIONAL_DETAILS WHERE userId = '%s'", username);
-	    	   List<List<String>> EduList= esql.executeQueryAndReturnResult(query);
-	    	   PrintEduDet(EduList);
+	       ProfileCache.Profile profile = esql.getProfiles().get(username);
+	       if (profile != null){
+	    	   UserPrinter(out, false, false).handle(profile.user);
+	    	   PrintUserStats(out, UserStats(esql, username), false);
+	    	   PrintWorkExp(out, profile.work);
+	    	   PrintEduDet(out, profile.education);
 	    	   
 			   boolean usermenu = true;
 		       while(usermenu) {
-		         System.out.println("Viewing Profile");
-		         System.out.println("---------");
-		         System.out.println("1. Send Friend Request");
-		         System.out.println("2. Send Message");
+		         out.println("Viewing Profile");
+		         out.println("---------");
+		         out.println("1. Send Friend Request");
+		         out.println("2. Send Message");
 		         if(target != null)
-		        	 System.out.println("3. View Friends");
-		         System.out.println(".........................");
-		         System.out.println("9. Main Menu");
-		         switch (readChoice()){
-		            case 1: SendRequest(esql, authorisedUser, username); return username;
-		            case 2: NewMessage(esql,authorisedUser, username); return username;
+		        	 out.println("3. View Friends");
+		         out.println(".........................");
+		         out.println("9. Main Menu");
+		         switch (readChoice(in, out)){
+		            case 1: SendRequest(esql, in, out, authorisedUser, username); return username;
+		            case 2: NewMessage(esql, in, out, authorisedUser, username); return username;
 		            case 3:
 		            	if(target != null){
-		            		String viewRet = ViewFriends(esql, target);
+		            		String viewRet = ViewFriends(esql, in, out, target);
 			            	if(viewRet == null){
-			            		System.out.println("Invalid User");
+			            		out.println("Invalid User");
 			            		break;
 			            	}
 		            		return username;
 		            	}
 		            	else
-		            		System.out.println("Unrecognized choice!");
+		            		out.println("Unrecognized choice!");
 		            	break;
 		            case 9: usermenu = false; break;
-		            default : System.out.println("Unrecognized choice!"); break;
+		            default : out.println("Unrecognized choice!"); break;
 		         }
 		       }
 	    	   return username;
 	       }
 	       else{
-	    	   System.out.println("User Not Found");
-	    	   return null;
+	    	   //No user with that exact id, offer the closest matches instead
+	    	   String match = FindPeople(esql, in, out, username);
+	    	   if(match == null){
+	    		   out.println("User Not Found");
+	    		   return null;
+	    	   }
+	    	   return SearchPeople(esql, in, out, authorisedUser, match);
 	       }
 	   }catch(Exception e){
-	         System.err.println (e.getMessage ());
+	         Metrics.error(e);
+	         return null;
+	   }
+   }
+   
+   // people search results shown per page, numbered 1-8 so 9 still goes back
+   static final int SEARCH_PAGE_SIZE = 8;
+
+   /*
+    * Escapes the LIKE wildcards in user input
+    **/
+   static String LikeEscape(String text){
+	   return text.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+   }
+   
+   static final String SEARCH_USERS_QUERY =
+		   "SELECT S.userId, MAX(S.name) FROM ("
+		   + "SELECT U.userId, CAST(U.name AS text) AS name, "
+		   + "GREATEST(similarity(U.userId, ?), similarity(CAST(U.name AS text), ?)) "
+		   + "+ CASE WHEN U.userId ILIKE ? OR CAST(U.name AS text) ILIKE ? THEN 1.0 "
+		   + "WHEN U.userId ILIKE ? OR CAST(U.name AS text) ILIKE ? THEN 0.5 ELSE 0 END AS score "
+		   + "FROM USR U "
+		   + "WHERE U.userId % ? OR CAST(U.name AS text) % ? OR U.userId ILIKE ? OR CAST(U.name AS text) ILIKE ? "
+		   + "UNION ALL "
+		   + "SELECT U.userId, CAST(U.name AS text), similarity(CAST(W.company AS text), ?) "
+		   + "+ CASE WHEN CAST(W.company AS text) ILIKE ? THEN 0.5 ELSE 0 END "
+		   + "FROM WORK_EXPR W, USR U "
+		   + "WHERE W.userId = U.userId AND (CAST(W.company AS text) % ? OR CAST(W.company AS text) ILIKE ?) "
+		   + "UNION ALL "
+		   + "SELECT U.userId, CAST(U.name AS text), similarity(CAST(E.instituitionName AS text), ?) "
+		   + "+ CASE WHEN CAST(E.instituitionName AS text) ILIKE ? THEN 0.5 ELSE 0 END "
+		   + "FROM EDUCATIONAL_DETAILS E, USR U "
+		   + "WHERE E.userId = U.userId AND (CAST(E.instituitionName AS text) % ? OR CAST(E.instituitionName AS text) ILIKE ?)"
+		   + ") S GROUP BY S.userId ORDER BY MAX(S.score) DESC, S.userId LIMIT ? OFFSET ?";
+   
+   /*
+    * Ranks users whose userId, name, company or institution resembles the
+    * search term.  Candidates come from the pg_trgm GIN indexes through the
+    * similarity (%) and ILIKE operators, prefix and substring matches rank
+    * above mere similarity.
+    * @return one page of [userId, name] rows, best match first
+    **/
+   public static List<String[]> SearchUsers(ProfNetwork esql, String term, int limit, int offset) throws SQLException{
+	   String sub = "%" + LikeEscape(term) + "%";
+	   String pre = LikeEscape(term) + "%";
+	   final List<String[]> found = new ArrayList<String[]>();
+	   esql.executeQueryAndStream(SEARCH_USERS_QUERY, new RowHandler(){
+		   public void handle(String[] row){
+			   found.add(row.clone());
+		   }
+	   }, term, term, pre, pre, sub, sub, term, term, sub, sub,
+	      term, pre, term, sub,
+	      term, pre, term, sub,
+	      limit, offset);
+	   return found;
+   }
+   
+   /*
+    * Lists the users resembling the search term a page at a time and lets
+    * the user pick one
+    * @return the chosen userId, or null if none was chosen
+    **/
+   public static String FindPeople(ProfNetwork esql, BufferedReader in, PrintStream out, String term){
+	   try{
+		   if(term == null || term.trim().isEmpty())
+			   return null;
+		   term = term.trim();
+		   int offset = 0;
+		   List<String[]> found = SearchUsers(esql, term, SEARCH_PAGE_SIZE, offset);
+		   if(found.isEmpty())
+			   return null;
+		   String Headder1 = String.format("%126s", "").replace(' ', '-');
+		   while(true){
+			   out.println(Headder1);
+			   for(int i = 0; i < found.size(); i++){
+				   String name = found.get(i)[1] == null ? "" : found.get(i)[1];
+				   out.println(String.format("| %3d | %-30s | %-83s", i + 1, found.get(i)[0], name) + "|");
+			   }
+			   out.println(Headder1);
+			   out.println("Matching People");
+			   out.println("---------");
+			   out.println("1-" + found.size() + ". View Profile");
+			   out.println("10. Next Page");
+			   out.println("11. Previous Page");
+			   out.println(".........................");
+			   out.println("9. Main Menu");
+			   int choice = readChoice(in, out);
+			   if(choice == 9)
+				   return null;
+			   if(choice >= 1 && choice <= found.size())
+				   return found.get(choice - 1)[0];
+			   if(choice == 10 || choice == 11){
+				   int next = choice == 10 ? offset + SEARCH_PAGE_SIZE : Math.max(0, offset - SEARCH_PAGE_SIZE);
+				   List<String[]> page = next == offset ? found : SearchUsers(esql, term, SEARCH_PAGE_SIZE, next);
+				   if(page.isEmpty() || next == offset){
+					   out.println("No more results");
+					   continue;
+				   }
+				   offset = next;
+				   found = page;
+				   continue;
+			   }
+			   out.println("Unrecognized choice!");
+		   }
+	   }catch(Exception e){
+	         Metrics.error(e);
 	         return null;
 	   }
    }
    
-   public static void ChangePassword(ProfNetwork esql, String authorisedUser){
+   // recommendations listed, numbered 1-8 so 9 still goes back
+   static final int RECOMMENDATIONS = 8;
+
+   /*
+    * Returns the lower case, trimmed companies and institutions of a profile
+    **/
+   static Set<String> Affiliations(ProfileCache.Profile profile){
+	   Set<String> names = new HashSet<String>();
+	   if(profile == null)
+		   return names;
+	   for(List<String> work : profile.work)
+		   names.add("w:" + work.get(0).trim().toLowerCase());
+	   for(List<String> edu : profile.education)
+		   names.add("e:" + edu.get(0).trim().toLowerCase());
+	   return names;
+   }
+   
+   /*
+    * Ranks friends of friends by the number of mutual friends, breaking
+    * ties by shared companies and institutions.  Mutual friends are counted
+    * on the in-memory connection graph, so the list follows every accepted
+    * request.  Only the candidates that can reach the top of the list have
+    * their profiles loaded for the tie break.
+    * @return up to limit [userId, name, mutual friends, shared affiliations] rows
+    **/
+   public static List<String[]> RecommendPeople(ProfNetwork esql, String user, int limit) throws SQLException{
+	   List<String[]> ranked = new ArrayList<String[]>();
+	   if(esql.getGraph() == null)
+		   return ranked;
+	   final Map<String, Integer> mutual = esql.getGraph().mutualFriendCounts(user);
+	   List<String> candidates = new ArrayList<String>(mutual.keySet());
+	   Collections.sort(candidates, new Comparator<String>(){
+		   public int compare(String a, String b){
+			   return mutual.get(b) - mutual.get(a);
+		   }
+	   });
+	   // everyone tied with the last place can still make the list
+	   int cut = Math.min(candidates.size(), limit);
+	   while(cut < candidates.size() && cut < limit * 3
+			   && mutual.get(candidates.get(cut)).equals(mutual.get(candidates.get(limit - 1))))
+		   cut++;
+	   candidates = candidates.subList(0, cut);
+
+	   Set<String> mine = Affiliations(esql.getProfiles().get(user));
+	   final Map<String, Integer> shared = new HashMap<String, Integer>();
+	   final Map<String, String> names = new HashMap<String, String>();
+	   for(String candidate : candidates){
+		   ProfileCache.Profile profile = esql.getProfiles().get(candidate);
+		   Set<String> theirs = Affiliations(profile);
+		   theirs.retainAll(mine);
+		   shared.put(candidate, theirs.size());
+		   names.put(candidate, profile == null || profile.user[2] == null ? "" : profile.user[2].trim());
+	   }
+	   Collections.sort(candidates, new Comparator<String>(){
+		   public int compare(String a, String b){
+			   if(!mutual.get(a).equals(mutual.get(b)))
+				   return mutual.get(b) - mutual.get(a);
+			   if(!shared.get(a).equals(shared.get(b)))
+				   return shared.get(b) - shared.get(a);
+			   return a.compareTo(b);
+		   }
+	   });
+	   for(String candidate : candidates.subList(0, Math.min(limit, candidates.size())))
+		   ranked.add(new String[]{ candidate, names.get(candidate),
+				   String.valueOf(mutual.get(candidate)), String.valueOf(shared.get(candidate)) });
+	   return ranked;
+   }
+   
+   public static void PeopleYouMayKnow(ProfNetwork esql, BufferedReader in, PrintStream out, String authorisedUser){
 	   try{
-		   System.out.println("---------");
-		   System.out.print("\tEnter New Password: ");
+		   out.println("People You May Know");
+		   out.println("---------");
+		   if(esql.getGraph() == null){
+			   out.println("Recommendations are not available");
+			   return;
+		   }
+		   List<String[]> ranked = RecommendPeople(esql, authorisedUser, RECOMMENDATIONS);
+		   if(ranked.isEmpty()){
+			   out.println("No recommendations yet, add some friends first");
+			   return;
+		   }
+		   String Headder1 = String.format("%126s", "").replace(' ', '-');
+		   out.println(Headder1);
+		   out.println(String.format("| %3s | %-30s | %-50s | %-10s | %-17s", "", "Username", "Name", "Mutual", "Shared Work/Edu") + "|");
+		   out.println(Headder1);
+		   for(int i = 0; i < ranked.size(); i++){
+			   String[] r = ranked.get(i);
+			   out.println(String.format("| %3d | %-30s | %-50s | %-10s | %-17s", i + 1, r[0], r[1], r[2], r[3]) + "|");
+		   }
+		   out.println(Headder1);
+		   while(true){
+			   out.println("1-" + ranked.size() + ". View Profile");
+			   out.println(".........................");
+			   out.println("9. Main Menu");
+			   int choice = readChoice(in, out);
+			   if(choice == 9)
+				   return;
+			   if(choice >= 1 && choice <= ranked.size()){
+				   SearchPeople(esql, in, out, authorisedUser, ranked.get(choice - 1)[0]);
+				   return;
+			   }
+			   out.println("Unrecognized choice!");
+		   }
+	   }catch(Exception e){
+	         Metrics.error(e);
+	         return;
+	   }
+   }
+   
+   public static void ChangePassword(ProfNetwork esql, BufferedReader in, PrintStream out, String authorisedUser){
+	   try{
+		   out.println("---------");
+		   out.print("\tEnter New Password: ");
 		   String newpass = in.readLine();
-		   System.out.print("\tEnter your current password: ");
+		   out.print("\tEnter your current password: ");
 		   String oldpass = in.readLine();
-	       String query = String.format("\tSELECT * FROM USR WHERE userId = '%s' AND password = '%s'", authorisedUser, oldpass);
-	       int userNum = esql.executeQuery(query);
-	       if (userNum > 0){
-	    	   query = String.format("UPDATE USR SET password = '%s' WHERE userId = '%s' AND password = '%s'", newpass, authorisedUser, oldpass);
-	    	   esql.executeUpdate(query);
-	    	   System.out.println("\tPassword Successfully Changed");
+	       if (esql.getCredentials().change(authorisedUser, oldpass, newpass)){
+	    	   esql.getProfiles().invalidate(authorisedUser);
+	    	   out.println("\tPassword Successfully Changed");
 	    	   return;
 	       }
 	       else{
-	    	   System.out.println("Incorrect Password. Returning to main menu.");
+	    	   out.println("Incorrect Password. Returning to main menu.");
 	    	   return;
 	       }
 	   }catch(Exception e){
-	         System.err.println (e.getMessage ());
+	         Metrics.error(e);
 	         return;
 	   }
    }
    
-   public static void AddEdu(ProfNetwork esql, String authorisedUser){
+   static final String ADD_EDU_QUERY =
+		   "INSERT INTO EDUCATIONAL_DETAILS (userId, instituitionName, major, degree, startDate, endDate)"
+		   + " VALUES (?,?,?,?,CAST(? AS date),CAST(? AS date))";
+   
+   public static void AddEdu(ProfNetwork esql, BufferedReader in, PrintStream out, String authorisedUser){
 	   try{
-		   System.out.println("---------");
-		   System.out.print("\tEnter institution name: ");
+		   out.println("---------");
+		   out.print("\tEnter institution name: ");
 		   String company = in.readLine();
-		   System.out.print("\tEnter major: ");
+		   out.print("\tEnter major: ");
 		   String role = in.readLine();
-		   System.out.print("\tEnter degree: ");
+		   out.print("\tEnter degree: ");
 		   String location = in.readLine();
-		   System.out.print("\tEnter start date (YYYY/MM/DD): ");
+		   out.print("\tEnter start date (YYYY/MM/DD): ");
 		   String startDate = in.readLine();
-		   System.out.print("\tEnter end date (YYYY/MM/DD): ");
+		   out.print("\tEnter end date (YYYY/MM/DD): ");
 		   String endDate = in.readLine();
 		   
-		   String query = String.format("INSERT INTO EDUCATIONAL_DETAILS (userId, instituitionName, major, degree, startDate, endDate)"
-		   		+ " VALUES ('%s','%s','%s','%s','%s','%s')",authorisedUser, company, role, location, startDate, endDate);
-		   esql.executeUpdate(query);
-		   System.out.println("\tWork Experience Added");
+		   esql.executeUpdate(ADD_EDU_QUERY, authorisedUser, company, role, location, startDate, endDate);
+		   esql.getProfiles().invalidate(authorisedUser);
+		   out.println("\tWork Experience Added");
 		   return;
 	   }catch(Exception e){
-	         System.err.println (e.getMessage ());
+	         Metrics.error(e);
 	         return;
 	   }
    }
    
-   public static void AddWork(ProfNetwork esql, String authorisedUser){
+   static final String ADD_WORK_QUERY =
+		   "INSERT INTO WORK_EXPR (userId, company, role, location, startDate, endDate)"
+		   + " VALUES (?,?,?,?,CAST(? AS date),CAST(? AS date))";
+   
+   public static void AddWork(ProfNetwork esql, BufferedReader in, PrintStream out, String authorisedUser){
 	   try{
-		   System.out.println("---------");
-		   System.out.print("\tEnter company name: ");
+		   out.println("---------");
+		   out.print("\tEnter company name: ");
 		   String instName = in.readLine();
-		   System.out.print("\tEnter role: ");
+		   out.print("\tEnter role: ");
 		   String major = in.readLine();
-		   System.out.print("\tEnter location: ");
+		   out.print("\tEnter location: ");
 		   String degree = in.readLine();
-		   System.out.print("\tEnter start date (YYYY-MM-DD): ");
+		   out.print("\tEnter start date (YYYY-MM-DD): ");
 		   String startDate = in.readLine();
-		   System.out.print("\tEnter end date (YYYY-MM-DD): ");
+		   out.print("\tEnter end date (YYYY-MM-DD): ");
 		   String endDate = in.readLine();
 		   
-		   String query = String.format("INSERT INTO WORK_EXPR (userId, company, role, location, startDate, endDate)"
-		   		+ " VALUES ('%s','%s','%s','%s','%s','%s')", authorisedUser, instName, major, degree, startDate, endDate);
-		   esql.executeUpdate(query);
-		   System.out.println("\tEducational Detail Added");
+		   esql.executeUpdate(ADD_WORK_QUERY, authorisedUser, instName, major, degree, startDate, endDate);
+		   esql.getProfiles().invalidate(authorisedUser);
+		   out.println("\tEducational Detail Added");
 		   return;
 	   }catch(Exception e){
-	         System.err.println (e.getMessage ());
+	         Metrics.error(e);
 	         return;
 	   }
    }
@@ -0,0 +1,175 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ * Group #52
+ */
+
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class caches assembled user profiles (the USR row together with the
+ * user's WORK_EXPR and EDUCATIONAL_DETAILS rows) for the profile pages.
+ *
+ * The cache holds at most capacity profiles and evicts the least recently
+ * used one.  A miss loads all three parts with a single query.  Menu
+ * actions that change a profile call invalidate so the next view reloads it.
+ *
+ * A load may race with an invalidate of the same user and read the profile
+ * from before the change.  Every invalidate bumps a generation counter, and
+ * a load that saw the counter move is returned but not cached.
+ */
+public class ProfileCache {
+
+   /**
+    * One user's profile as shown on the profile pages.
+    */
+   public static class Profile {
+      // userId, email, name, dateOfBirth
+      public final String[] user;
+      // company, role, location, startDate, endDate
+      public final List<List<String>> work = new ArrayList<List<String>>();
+      // instituitionName, major, degree, startDate, endDate
+      public final List<List<String>> education = new ArrayList<List<String>>();
+
+      Profile (String[] user) {
+         this.user = user;
+      }
+   }//end Profile
+
+   // the three parts of a profile, tagged by the table they come from
+   static final String LOAD_QUERY =
+         "SELECT 'U', CAST(userId AS varchar), CAST(email AS varchar), CAST(name AS varchar), "
+         + "CAST(dateOfBirth AS varchar), CAST(NULL AS varchar) "
+         + "FROM USR WHERE userId = ? "
+         + "UNION ALL "
+         + "SELECT 'W', CAST(company AS varchar), CAST(role AS varchar), CAST(location AS varchar), "
+         + "CAST(startDate AS varchar), CAST(endDate AS varchar) "
+         + "FROM WORK_EXPR WHERE userId = ? "
+         + "UNION ALL "
+         + "SELECT 'E', CAST(instituitionName AS varchar), CAST(major AS varchar), CAST(degree AS varchar), "
+         + "CAST(startdate AS varchar), CAST(enddate AS varchar) "
+         + "FROM EDUCATIONAL_DETAILS WHERE userId = ?";
+
+   private final ProfNetwork _esql;
+   private final LinkedHashMap<String, Profile> _entries;
+   // bumped by every invalidate, guarded by _entries
+   private long _generation = 0;
+   private final AtomicLong _hits = new AtomicLong();
+   private final AtomicLong _misses = new AtomicLong();
+   private final AtomicLong _evictions = new AtomicLong();
+
+   /**
+    * @param esql the database access object used on a miss
+    * @param capacity the largest number of profiles kept
+    */
+   public ProfileCache (ProfNetwork esql, final int capacity) {
+      this._esql = esql;
+      // access order makes the first entry the least recently used one
+      this._entries = new LinkedHashMap<String, Profile>(16, 0.75f, true) {
+         protected boolean removeEldestEntry (Map.Entry<String, Profile> eldest) {
+            if (size() <= capacity)
+               return false;
+            _evictions.incrementAndGet();
+            return true;
+         }
+      };
+   }//end ProfileCache
+
+   /**
+    * Returns the profile of a user, loading and caching it on a miss.
+    *
+    * @param userId the user to look up
+    * @return the profile, or null when there is no such user
+    * @throws java.sql.SQLException when the profile could not be loaded
+    */
+   public Profile get (String userId) throws SQLException {
+      long generation;
+      synchronized (this._entries){
+         Profile profile = this._entries.get(userId);
+         if (profile != null){
+            this._hits.incrementAndGet();
+            return profile;
+         }//end if
+         generation = this._generation;
+      }//end synchronized
+      this._misses.incrementAndGet();
+
+      Profile profile = load(userId);
+      if (profile != null){
+         synchronized (this._entries){
+            // an invalidate during the load may have made it stale
+            if (this._generation == generation)
+               this._entries.put(userId, profile);
+         }//end synchronized
+      }//end if
+      return profile;
+   }//end get
+
+   private Profile load (String userId) throws SQLException {
+      final String[][] user = new String[1][];
+      final List<List<String>> work = new ArrayList<List<String>>();
+      final List<List<String>> education = new ArrayList<List<String>>();
+      this._esql.executeQueryAndStream(LOAD_QUERY, new ProfNetwork.RowHandler() {
+         public void handle (String[] row) {
+            String[] values = Arrays.copyOfRange(row, 1, row.length);
+            if ("U".equals(row[0]))
+               user[0] = values;
+            else if ("W".equals(row[0]))
+               work.add(Arrays.asList(values));
+            else
+               education.add(Arrays.asList(values));
+         }
+      }, userId, userId, userId);
+      if (user[0] == null)
+         return null;
+      Profile profile = new Profile(user[0]);
+      profile.work.addAll(work);
+      profile.education.addAll(education);
+      return profile;
+   }//end load
+
+   /**
+    * Drops a user's cached profile after it was changed.
+    */
+   public void invalidate (String userId) {
+      synchronized (this._entries){
+         this._entries.remove(userId);
+         ++this._generation;
+      }//end synchronized
+   }//end invalidate
+
+   public int size () {
+      synchronized (this._entries){
+         return this._entries.size();
+      }
+   }//end size
+
+   public long getHits () { return this._hits.get(); }
+   public long getMisses () { return this._misses.get(); }
+   public long getEvictions () { return this._evictions.get(); }
+
+   /**
+    * @return a one line summary of the cache size and hit rate
+    */
+   public String stats () {
+      long hits = getHits();
+      long misses = getMisses();
+      double rate = hits + misses == 0 ? 0.0 : 100.0 * hits / (hits + misses);
+      return String.format("profiles=%d hits=%d misses=%d hitRate=%.1f%% evictions=%d",
+                           size(), hits, misses, rate, getEvictions());
+   }//end stats
+}//end ProfileCache
@@ -0,0 +1,550 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ * Group #52
+ */
+
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * This class converts the fixed width char(N) columns of an existing
+ * database to varchar(N), the types create_tables.sql now declares, while
+ * the application keeps running.
+ *
+ * Changing a column type in place rewrites the whole table under an
+ * exclusive lock.  Instead, for each table:
+ *   1. a varchar shadow column is added next to every char column, with a
+ *      trigger copying the old column into it on every insert and update
+ *   2. the existing rows are copied in batches in primary key order, each
+ *      batch in its own short transaction
+ *   3. the indexes on the old columns are built again on the shadow columns
+ *      with CREATE INDEX CONCURRENTLY, and NOT NULL is checked through a
+ *      NOT VALID constraint validated without blocking writes
+ *   4. one short transaction drops the old columns and renames the shadow
+ *      columns and indexes into their place
+ * The statements that need an exclusive lock give up after lockTimeout
+ * milliseconds and are retried, so the migration never queues the
+ * application behind a long running transaction.  A migration that was
+ * interrupted can be started again, columns already converted are skipped.
+ *
+ * Statements the application prepared before step 4 still return the old
+ * char types, and Postgres refuses to run them with "cached plan must not
+ * change result type".  ProfNetwork then drops the statement cache of its
+ * pooled connections and runs the statement once more, so no restart is
+ * needed.  Other clients keeping server-side prepared statements must do
+ * the same or reconnect.
+ *
+ * The size of each table, its indexes and its TOAST table is reported
+ * before and after.  Dropped columns keep their space in the existing rows
+ * until the rows are rewritten, which -vacuumFull does at the end (with an
+ * exclusive lock).
+ */
+public class SchemaMigrator {
+
+   /**
+    * A table, its primary key with the cast of each key column, and the
+    * columns to convert with their new type.
+    */
+   static class Table {
+      final String name;
+      final String[] key;
+      final String[] keyCasts;
+      final String[] columns;
+      final String[] types;
+
+      Table (String name, String[] key, String[] keyCasts, String[] columns, String[] types) {
+         this.name = name;
+         this.key = key;
+         this.keyCasts = keyCasts;
+         this.columns = columns;
+         this.types = types;
+      }
+   }//end Table
+
+   static final Table[] TABLES = {
+      new Table("USR",
+            new String[]{ "userId" }, new String[]{ null },
+            new String[]{ "name" }, new String[]{ "varchar(50)" }),
+      new Table("WORK_EXPR",
+            new String[]{ "userId", "company", "role", "startDate" }, new String[]{ null, null, null, "date" },
+            new String[]{ "company", "role", "location" },
+            new String[]{ "varchar(50)", "varchar(50)", "varchar(50)" }),
+      new Table("EDUCATIONAL_DETAILS",
+            new String[]{ "userId", "major", "degree" }, new String[]{ null, null, null },
+            new String[]{ "instituitionName", "major", "degree" },
+            new String[]{ "varchar(50)", "varchar(50)", "varchar(50)" }),
+      new Table("CONNECTION_USR",
+            new String[]{ "userId", "connectionId" }, new String[]{ null, null },
+            new String[]{ "status" }, new String[]{ "varchar(30)" }),
+      new Table("MESSAGE",
+            new String[]{ "msgId" }, new String[]{ "integer" },
+            new String[]{ "contents", "status" }, new String[]{ "varchar(500)", "varchar(30)" })
+   };
+
+   // suffix of the shadow columns and indexes
+   static final String NEW = "_new";
+
+   /**
+    * A column still to convert, as found in the catalog.
+    */
+   static class Column {
+      final String name;
+      final String type;
+      final boolean notNull;
+      final String defaultValue;
+
+      Column (String name, String type, boolean notNull, String defaultValue) {
+         this.name = name;
+         this.type = type;
+         this.notNull = notNull;
+         this.defaultValue = defaultValue;
+      }
+   }//end Column
+
+   /**
+    * An index on a converted column and the copy built on the shadow columns.
+    */
+   static class Index {
+      final String name;
+      final String constraint;
+      final String constraintType;
+      final String definition;
+
+      Index (String name, String constraint, String constraintType, String definition) {
+         this.name = name;
+         this.constraint = constraint;
+         this.constraintType = constraintType;
+         this.definition = definition;
+      }
+
+      String newName () {
+         return newName(this.name);
+      }
+
+      // the copy's name, kept within the 63 characters of an identifier
+      static String newName (String name) {
+         return (name.length() > 63 - NEW.length() ? name.substring(0, 63 - NEW.length()) : name) + NEW;
+      }
+   }//end Index
+
+   /**
+    * Statements run in one transaction that takes an exclusive lock.
+    */
+   interface Step {
+      void run (Statement stmt) throws SQLException;
+   }
+
+   private static final Pattern INDEX_DEF = Pattern.compile("^CREATE (UNIQUE )?INDEX \\S+ ON (\\S+) (USING .*)$");
+
+   private final Connection _conn;
+   private final int _batchRows;
+   private final long _pause;
+   private final long _lockTimeout;
+   private final int _attempts;
+   private final boolean _vacuumFull;
+
+   public SchemaMigrator (Connection conn, int batchRows, long pause, long lockTimeout, int attempts, boolean vacuumFull) {
+      this._conn = conn;
+      this._batchRows = Math.max(1, batchRows);
+      this._pause = pause;
+      this._lockTimeout = lockTimeout;
+      this._attempts = Math.max(1, attempts);
+      this._vacuumFull = vacuumFull;
+   }//end SchemaMigrator
+
+   /**
+    * Migrates the tables one after the other and prints their sizes before
+    * and after.
+    */
+   public void run (List<Table> tables) throws SQLException, InterruptedException {
+      Map<String, long[]> before = new LinkedHashMap<String, long[]>();
+      for (Table table : tables)
+         before.put(table.name, sizes(table.name));
+      for (Table table : tables){
+         long start = System.nanoTime();
+         if (migrate(table))
+            System.out.println(String.format("%-20s migrated in %.1f s", table.name, (System.nanoTime() - start) / 1e9));
+      }//end for
+      System.out.println();
+      System.out.println(String.format("%-20s %-7s %12s %12s %12s %12s",
+            "table", "", "total", "heap", "indexes", "toast"));
+      for (Table table : tables){
+         long[] after = sizes(table.name);
+         printSizes(table.name, "before", before.get(table.name));
+         printSizes("", "after", after);
+      }//end for
+   }//end run
+
+   /**
+    * Converts the char columns left in one table.
+    *
+    * @return false if there was nothing left to convert
+    */
+   boolean migrate (final Table table) throws SQLException, InterruptedException {
+      final List<Column> columns = columns(table);
+      if (columns.isEmpty()){
+         System.out.println(String.format("%-20s already migrated", table.name));
+         return false;
+      }//end if
+      final String sync = table.name.toLowerCase() + "_migrate_sync";
+
+      System.out.println(String.format("%-20s adding shadow columns", table.name));
+      inTransaction(new Step(){
+         public void run (Statement stmt) throws SQLException {
+            StringBuilder copy = new StringBuilder();
+            for (Column c : columns){
+               stmt.execute("ALTER TABLE " + table.name + " ADD COLUMN IF NOT EXISTS " + c.name + NEW + " " + c.type);
+               if (c.notNull)
+                  stmt.execute("ALTER TABLE " + table.name
+                        + " DROP CONSTRAINT IF EXISTS " + c.name + NEW + "_not_null, "
+                        + " ADD CONSTRAINT " + c.name + NEW + "_not_null CHECK (" + c.name + NEW + " IS NOT NULL) NOT VALID");
+               copy.append("\tNEW.").append(c.name).append(NEW).append(" := NEW.").append(c.name).append(";\n");
+            }//end for
+            stmt.execute("CREATE OR REPLACE FUNCTION " + sync + "() RETURNS trigger AS $$\nBEGIN\n"
+                  + copy + "\tRETURN NEW;\nEND;\n$$ LANGUAGE plpgsql");
+            stmt.execute("DROP TRIGGER IF EXISTS " + sync + "_trg ON " + table.name);
+            stmt.execute("CREATE TRIGGER " + sync + "_trg BEFORE INSERT OR UPDATE ON " + table.name
+                  + " FOR EACH ROW EXECUTE PROCEDURE " + sync + "()");
+         }
+      });
+
+      backfill(table, columns);
+
+      final List<Index> indexes = indexes(table, columns);
+      Statement stmt = this._conn.createStatement();
+      try{
+         for (Index index : indexes){
+            System.out.println(String.format("%-20s building %s", table.name, index.newName()));
+            stmt.execute("DROP INDEX CONCURRENTLY IF EXISTS " + index.newName());
+            stmt.execute(index.definition);
+         }//end for
+         for (Column c : columns){
+            if (c.notNull)
+               stmt.execute("ALTER TABLE " + table.name + " VALIDATE CONSTRAINT " + c.name + NEW + "_not_null");
+         }//end for
+      }finally{
+         stmt.close();
+      }//end try
+
+      System.out.println(String.format("%-20s swapping columns", table.name));
+      inTransaction(new Step(){
+         public void run (Statement stmt) throws SQLException {
+            stmt.execute("LOCK TABLE " + table.name + " IN ACCESS EXCLUSIVE MODE");
+            // triggers listing columns (UPDATE OF ...) would block dropping
+            // them, they are created again once the columns are renamed
+            List<String> triggers = new ArrayList<String>();
+            ResultSet rs = stmt.executeQuery(
+                  "SELECT tgname, pg_get_triggerdef(oid) FROM pg_trigger "
+                  + "WHERE tgrelid = CAST('" + table.name.toLowerCase() + "' AS regclass) AND NOT tgisinternal "
+                  + "AND array_length(CAST(tgattr AS int2[]), 1) > 0");
+            List<String> names = new ArrayList<String>();
+            while (rs.next()){
+               names.add(rs.getString(1));
+               triggers.add(rs.getString(2));
+            }//end while
+            rs.close();
+            for (String name : names)
+               stmt.execute("DROP TRIGGER " + name + " ON " + table.name);
+            stmt.execute("DROP TRIGGER " + sync + "_trg ON " + table.name);
+            for (Column c : columns){
+               stmt.execute("ALTER TABLE " + table.name + " DROP COLUMN " + c.name);
+               stmt.execute("ALTER TABLE " + table.name + " RENAME COLUMN " + c.name + NEW + " TO " + c.name);
+               if (c.defaultValue != null)
+                  stmt.execute("ALTER TABLE " + table.name + " ALTER COLUMN " + c.name + " SET DEFAULT " + c.defaultValue);
+               if (c.notNull){
+                  // the validated check constraint spares the scan
+                  stmt.execute("ALTER TABLE " + table.name + " ALTER COLUMN " + c.name + " SET NOT NULL");
+                  stmt.execute("ALTER TABLE " + table.name + " DROP CONSTRAINT " + c.name + NEW + "_not_null");
+               }//end if
+            }//end for
+            for (Index index : indexes){
+               if ("p".equals(index.constraintType))
+                  stmt.execute("ALTER TABLE " + table.name + " ADD CONSTRAINT " + index.constraint
+                        + " PRIMARY KEY USING INDEX " + index.newName());
+               else if ("u".equals(index.constraintType))
+                  stmt.execute("ALTER TABLE " + table.name + " ADD CONSTRAINT " + index.constraint
+                        + " UNIQUE USING INDEX " + index.newName());
+               else
+                  stmt.execute("ALTER INDEX " + index.newName() + " RENAME TO " + index.name);
+            }//end for
+            for (String trigger : triggers)
+               stmt.execute(trigger);
+            stmt.execute("DROP FUNCTION " + sync + "()");
+         }
+      });
+
+      stmt = this._conn.createStatement();
+      try{
+         System.out.println(String.format("%-20s vacuuming", table.name));
+         stmt.execute((this._vacuumFull ? "VACUUM FULL ANALYZE " : "VACUUM ANALYZE ") + table.name);
+      }finally{
+         stmt.close();
+      }//end try
+      return true;
+   }//end migrate
+
+   /**
+    * @return the columns of table that are still char(N), with the new
+    * type of each
+    */
+   List<Column> columns (Table table) throws SQLException {
+      List<Column> columns = new ArrayList<Column>();
+      PreparedStatement stmt = this._conn.prepareStatement(
+            "SELECT is_nullable, column_default FROM information_schema.columns "
+            + "WHERE table_schema = current_schema() AND table_name = ? AND column_name = ? "
+            + "AND data_type = 'character'");
+      try{
+         for (int i = 0; i < table.columns.length; ++i){
+            stmt.setString(1, table.name.toLowerCase());
+            stmt.setString(2, table.columns[i].toLowerCase());
+            ResultSet rs = stmt.executeQuery();
+            if (rs.next()){
+               String defaultValue = rs.getString(2);
+               if (defaultValue != null)
+                  defaultValue = defaultValue.replace("::bpchar", "");
+               columns.add(new Column(table.columns[i].toLowerCase(), table.types[i],
+                                      "NO".equals(rs.getString(1)), defaultValue));
+            }//end if
+            rs.close();
+         }//end for
+      }finally{
+         stmt.close();
+      }//end try
+      return columns;
+   }//end columns
+
+   /**
+    * Copies the old columns into the shadow columns batchRows rows at a
+    * time, walking the primary key.  Each batch is one statement, so it
+    * commits on its own and holds its row locks only briefly.
+    */
+   void backfill (Table table, List<Column> columns) throws SQLException, InterruptedException {
+      StringBuilder keys = new StringBuilder();
+      StringBuilder cursor = new StringBuilder();
+      StringBuilder join = new StringBuilder();
+      StringBuilder desc = new StringBuilder();
+      for (int i = 0; i < table.key.length; ++i){
+         String sep = i > 0 ? ", " : "";
+         keys.append(sep).append(table.key[i]);
+         cursor.append(sep).append(table.keyCasts[i] == null ? "?" : "CAST(? AS " + table.keyCasts[i] + ")");
+         join.append(i > 0 ? " AND " : "").append(table.name).append('.').append(table.key[i])
+             .append(" = B.").append(table.key[i]);
+         desc.append(sep).append(table.key[i]).append(" DESC");
+      }//end for
+      StringBuilder copy = new StringBuilder();
+      for (Column c : columns)
+         copy.append(copy.length() > 0 ? ", " : "").append(c.name).append(NEW).append(" = ").append(c.name);
+      String batch =
+            "WITH B AS (SELECT " + keys + " FROM " + table.name + " %s ORDER BY " + keys + " LIMIT " + this._batchRows + "), "
+            + "U AS (UPDATE " + table.name + " SET " + copy + " FROM B WHERE " + join + ") "
+            + "SELECT " + keys + " FROM B ORDER BY " + desc + " LIMIT 1";
+      PreparedStatement first = this._conn.prepareStatement(String.format(batch, ""));
+      PreparedStatement next = this._conn.prepareStatement(
+            String.format(batch, "WHERE (" + keys + ") > (" + cursor + ")"));
+      try{
+         String[] last = null;
+         long batches = 0;
+         long start = System.nanoTime();
+         while (true){
+            PreparedStatement stmt = last == null ? first : next;
+            if (last != null)
+               for (int i = 0; i < last.length; ++i)
+                  stmt.setString(i + 1, last[i]);
+            ResultSet rs = stmt.executeQuery();
+            if (!rs.next()){
+               rs.close();
+               break;
+            }//end if
+            last = new String[table.key.length];
+            for (int i = 0; i < last.length; ++i)
+               last[i] = rs.getString(i + 1);
+            rs.close();
+            if (++batches % 100 == 0)
+               System.out.println(String.format("%-20s copied %d batches in %.1f s",
+                     table.name, batches, (System.nanoTime() - start) / 1e9));
+            if (this._pause > 0)
+               Thread.sleep(this._pause);
+         }//end while
+         System.out.println(String.format("%-20s copied %d batches", table.name, batches));
+      }finally{
+         first.close();
+         next.close();
+      }//end try
+   }//end backfill
+
+   /**
+    * @return the indexes of table on any of the columns, with a CREATE
+    * INDEX CONCURRENTLY statement building each on the shadow columns
+    */
+   List<Index> indexes (Table table, List<Column> columns) throws SQLException {
+      StringBuilder names = new StringBuilder();
+      for (Column c : columns)
+         names.append(names.length() > 0 ? "|" : "").append(c.name);
+      Pattern column = Pattern.compile("\\b(" + names + ")\\b");
+      List<Index> indexes = new ArrayList<Index>();
+      PreparedStatement stmt = this._conn.prepareStatement(
+            "SELECT C.relname, pg_get_indexdef(I.indexrelid), K.conname, K.contype "
+            + "FROM pg_index I JOIN pg_class C ON C.oid = I.indexrelid "
+            + "LEFT JOIN pg_constraint K ON K.conindid = I.indexrelid AND K.contype IN ('p', 'u') "
+            + "WHERE I.indrelid = CAST(? AS regclass) AND C.relname NOT LIKE ?");
+      try{
+         stmt.setString(1, table.name.toLowerCase());
+         stmt.setString(2, "%" + NEW);
+         ResultSet rs = stmt.executeQuery();
+         while (rs.next()){
+            Matcher m = INDEX_DEF.matcher(rs.getString(2));
+            if (!m.matches() || !column.matcher(m.group(3)).find())
+               continue;
+            // char literals compared with the new varchar column would
+            // make the predicate no longer match the queries
+            String using = column.matcher(m.group(3)).replaceAll("$1" + NEW).replace("::bpchar", "::text");
+            indexes.add(new Index(rs.getString(1), rs.getString(3), rs.getString(4),
+                  "CREATE " + (m.group(1) == null ? "" : m.group(1)) + "INDEX CONCURRENTLY "
+                  + Index.newName(rs.getString(1)) + " ON " + m.group(2) + " " + using));
+         }//end while
+         rs.close();
+      }finally{
+         stmt.close();
+      }//end try
+      return indexes;
+   }//end indexes
+
+   /**
+    * Runs a step in one transaction with a lock timeout, retrying it when a
+    * lock could not be had in time.
+    */
+   void inTransaction (Step step) throws SQLException, InterruptedException {
+      for (int attempt = 1; ; ++attempt){
+         this._conn.setAutoCommit(false);
+         Statement stmt = this._conn.createStatement();
+         try{
+            stmt.execute("SET LOCAL lock_timeout = " + this._lockTimeout);
+            step.run(stmt);
+            this._conn.commit();
+            return;
+         }catch (SQLException e){
+            this._conn.rollback();
+            if (attempt >= this._attempts)
+               throw e;
+            System.err.println("Retrying after: " + e.getMessage());
+            Thread.sleep(Math.min(10000L, this._lockTimeout * attempt));
+         }finally{
+            stmt.close();
+            this._conn.setAutoCommit(true);
+         }//end try
+      }//end for
+   }//end inTransaction
+
+   /**
+    * @return the total, heap, index and TOAST bytes of a table
+    */
+   long[] sizes (String table) throws SQLException {
+      PreparedStatement stmt = this._conn.prepareStatement(
+            "SELECT pg_total_relation_size(CAST(? AS regclass)), pg_relation_size(CAST(? AS regclass)), "
+            + "pg_indexes_size(CAST(? AS regclass))");
+      try{
+         for (int i = 1; i <= 3; ++i)
+            stmt.setString(i, table.toLowerCase());
+         ResultSet rs = stmt.executeQuery();
+         rs.next();
+         long total = rs.getLong(1);
+         long heap = rs.getLong(2);
+         long indexes = rs.getLong(3);
+         rs.close();
+         return new long[]{ total, heap, indexes, total - heap - indexes };
+      }finally{
+         stmt.close();
+      }//end try
+   }//end sizes
+
+   static void printSizes (String table, String label, long[] sizes) {
+      System.out.println(String.format("%-20s %-7s %12s %12s %12s %12s",
+            table, label, kb(sizes[0]), kb(sizes[1]), kb(sizes[2]), kb(sizes[3])));
+   }//end printSizes
+
+   static String kb (long bytes) {
+      return (bytes / 1024) + " kB";
+   }//end kb
+
+   /**
+    * The main execution method
+    *
+    * @param args <dbname> <port> <user> [-tables T1,T2] [-batch ROWS] [-pause MS] [-lockTimeout MS] [-attempts N] [-vacuumFull]
+    */
+   public static void main (String[] args) {
+      if (args.length < 3) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            SchemaMigrator.class.getName () +
+            " <dbname> <port> <user> [-tables T1,T2] [-batch ROWS] [-pause MS] [-lockTimeout MS] [-attempts N] [-vacuumFull]");
+         System.exit(1);
+      }//end if
+      List<Table> tables = new ArrayList<Table>(Arrays.asList(TABLES));
+      int batch = 5000;
+      long pause = 0;
+      long lockTimeout = 2000;
+      int attempts = 30;
+      boolean vacuumFull = false;
+      for (int i = 3; i < args.length; ++i){
+         if (args[i].equals("-vacuumFull")){
+            vacuumFull = true;
+            continue;
+         }//end if
+         if (i + 1 >= args.length)
+            break;
+         if (args[i].equals("-tables")){
+            List<String> names = Arrays.asList(args[i + 1].toUpperCase().split(","));
+            tables.clear();
+            for (Table table : TABLES)
+               if (names.contains(table.name))
+                  tables.add(table);
+         }else if (args[i].equals("-batch"))
+            batch = Integer.parseInt(args[i + 1]);
+         else if (args[i].equals("-pause"))
+            pause = Long.parseLong(args[i + 1]);
+         else if (args[i].equals("-lockTimeout"))
+            lockTimeout = Long.parseLong(args[i + 1]);
+         else if (args[i].equals("-attempts"))
+            attempts = Integer.parseInt(args[i + 1]);
+         ++i;
+      }//end for
+
+      ConnectionPool pool = null;
+      ConnectionPool.PooledConnection conn = null;
+      try{
+         Class.forName ("org.postgresql.Driver").newInstance ();
+         String url = "jdbc:postgresql://localhost:" + args[1] + "/" + args[0];
+         pool = new ConnectionPool(url, args[2], "", 1, 1, 60000L, 600000L, 5000L);
+         conn = pool.borrow();
+         new SchemaMigrator(conn.getConnection(), batch, pause, lockTimeout, attempts, vacuumFull).run(tables);
+      }catch (Exception e){
+         System.err.println ("Migration failed: " + e.getMessage ());
+         System.exit(1);
+      }finally{
+         if (pool != null){
+            pool.release(conn);
+            pool.close();
+         }//end if
+      }//end try
+   }//end main
+}//end SchemaMigrator
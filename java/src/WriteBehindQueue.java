@@ -0,0 +1,278 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ * Group #52
+ */
+
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * This class takes the message status bookkeeping off the interactive
+ * path.  Marking received messages as delivered and marking messages as
+ * deleted are queued in memory and written by a background thread.
+ *
+ * Pending writes are coalesced: a message is marked delivered at most once
+ * and a user deletes a message at most once however often it is queued.
+ * The flusher wakes up every interval milliseconds, or as soon as batchSize
+ * writes are pending, and writes everything pending with one set-based
+ * UPDATE per kind of write and batchSize messages.  close drains the queue
+ * before returning.
+ */
+public class WriteBehindQueue {
+
+   // single message forms, used to retry a failed chunk row by row
+   static final String DELIVERED_QUERY =
+         "UPDATE MESSAGE SET status = 'Delivered' WHERE msgId = ? AND status = 'Sent'";
+   // sets bit 1 for the sender's side and bit 2 for the receiver's side, so
+   // deleting twice changes nothing
+   static final String DELETE_QUERY =
+         "UPDATE MESSAGE SET deleteStatus = deleteStatus "
+         + "| (CASE WHEN senderId = ? THEN 1 ELSE 0 END) "
+         + "| (CASE WHEN receiverId = ? THEN 2 ELSE 0 END) "
+         + "WHERE msgId = ? AND (senderId = ? OR receiverId = ?)";
+
+   /**
+    * @return an UPDATE marking count messages delivered, one msgId per placeholder
+    */
+   static String deliveredQuery (int count) {
+      return "UPDATE MESSAGE SET status = 'Delivered' WHERE status = 'Sent' "
+            + "AND msgId IN (" + ProfNetwork.placeholders(count) + ")";
+   }//end deliveredQuery
+
+   /**
+    * @return an UPDATE applying count (user, msgId) deletions.  The bits of
+    * every user deleting the same message are OR-ed together first, since
+    * UPDATE ... FROM changes a row only once.
+    */
+   static String deleteQuery (int count) {
+      StringBuilder values = new StringBuilder();
+      for (int i = 0; i < count; ++i)
+         values.append(i > 0 ? ", " : "").append("(CAST(? AS varchar), CAST(? AS integer))");
+      return "UPDATE MESSAGE M SET deleteStatus = M.deleteStatus | D.bits "
+            + "FROM (SELECT X.msgId, bit_or((CASE WHEN X.senderId = V.userId THEN 1 ELSE 0 END) "
+            + "| (CASE WHEN X.receiverId = V.userId THEN 2 ELSE 0 END)) AS bits "
+            + "FROM (VALUES " + values + ") AS V(userId, msgId), MESSAGE X "
+            + "WHERE X.msgId = V.msgId GROUP BY X.msgId) D "
+            + "WHERE M.msgId = D.msgId AND (M.deleteStatus | D.bits) <> M.deleteStatus";
+   }//end deleteQuery
+
+   private final ProfNetwork _esql;
+   private final long _interval;
+   private final int _batchSize;
+
+   // msgIds to mark delivered
+   private final Set<Integer> _delivered = new LinkedHashSet<Integer>();
+   // user + msgId -> { user, msgId } to mark deleted by that user
+   private final Map<String, Object[]> _deletes = new LinkedHashMap<String, Object[]>();
+   private boolean _closed = false;
+   private final Thread _flusher;
+
+   private long _flushed = 0;
+   private long _batches = 0;
+   private long _failures = 0;
+
+   /**
+    * Creates the queue and starts its flusher thread.
+    *
+    * @param esql the database access object the writes go through
+    * @param interval the longest time in milliseconds a write stays queued
+    * @param batchSize the number of pending writes that triggers an early flush
+    */
+   public WriteBehindQueue (ProfNetwork esql, long interval, int batchSize) {
+      this._esql = esql;
+      this._interval = Math.max(1L, interval);
+      this._batchSize = Math.max(1, batchSize);
+      this._flusher = new Thread("WriteBehindQueue-flusher") {
+         public void run () { flushLoop(); }
+      };
+      this._flusher.setDaemon(true);
+      this._flusher.start();
+   }//end WriteBehindQueue
+
+   /**
+    * Queues marking received messages as delivered.
+    */
+   public void delivered (List<Integer> msgIds) {
+      if (msgIds.isEmpty())
+         return;
+      synchronized (this){
+         if (!this._closed){
+            this._delivered.addAll(msgIds);
+            wakeIfFull();
+            return;
+         }//end if
+      }//end synchronized
+      write(msgIds, new ArrayList<Object[]>());
+   }//end delivered
+
+   /**
+    * Queues the deletion of a message on user's side of it.
+    */
+   public void delete (String user, int msgId) {
+      Object[] row = { user, msgId };
+      synchronized (this){
+         if (!this._closed){
+            this._deletes.put(user + '\u0000' + msgId, row);
+            wakeIfFull();
+            return;
+         }//end if
+      }//end synchronized
+      List<Object[]> one = new ArrayList<Object[]>();
+      one.add(row);
+      write(new ArrayList<Integer>(), one);
+   }//end delete
+
+   /**
+    * @return true while user's deletion of msgId is still queued, so pages
+    * read in the meantime can leave the message out
+    */
+   public synchronized boolean isDeleting (String user, int msgId) {
+      return this._deletes.containsKey(user + '\u0000' + msgId);
+   }
+
+   private void wakeIfFull () {
+      if (this._delivered.size() + this._deletes.size() >= this._batchSize)
+         this.notifyAll();
+   }//end wakeIfFull
+
+   private void flushLoop () {
+      while (true){
+         List<Integer> delivered;
+         List<Object[]> deletes;
+         synchronized (this){
+            long deadline = System.currentTimeMillis() + this._interval;
+            while (!this._closed && this._delivered.size() + this._deletes.size() < this._batchSize){
+               long remaining = deadline - System.currentTimeMillis();
+               if (remaining <= 0)
+                  break;
+               try{
+                  this.wait(remaining);
+               }catch (InterruptedException e){
+                  return;
+               }//end try
+            }//end while
+            delivered = new ArrayList<Integer>(this._delivered);
+            deletes = new ArrayList<Object[]>(this._deletes.values());
+            if (this._closed && delivered.isEmpty() && deletes.isEmpty())
+               return;
+         }//end synchronized
+         write(delivered, deletes);
+         synchronized (this){
+            // only forget what was written, newer writes stay queued
+            this._delivered.removeAll(delivered);
+            for (Object[] d : deletes)
+               this._deletes.remove(d[0].toString() + '\u0000' + d[1]);
+            this.notifyAll();
+         }//end synchronized
+      }//end while
+   }//end flushLoop
+
+   /**
+    * Writes a set of pending writes, one statement per kind of write and
+    * batchSize messages.  Each statement is its own transaction, and when
+    * one fails its writes are retried one by one, so a bad row does not
+    * lose the rest.
+    */
+   private void write (List<Integer> delivered, List<Object[]> deletes) {
+      if (delivered.isEmpty() && deletes.isEmpty())
+         return;
+      boolean timed = Metrics.begin("WriteBehind");
+      try{
+         for (int from = 0; from < delivered.size(); from += this._batchSize){
+            List<Integer> chunk = delivered.subList(from, Math.min(delivered.size(), from + this._batchSize));
+            List<Object[]> rows = new ArrayList<Object[]>();
+            for (Integer msgId : chunk)
+               rows.add(new Object[]{ msgId });
+            chunk(deliveredQuery(chunk.size()), chunk.toArray(), DELIVERED_QUERY, rows);
+         }//end for
+         for (int from = 0; from < deletes.size(); from += this._batchSize){
+            List<Object[]> chunk = deletes.subList(from, Math.min(deletes.size(), from + this._batchSize));
+            List<Object> params = new ArrayList<Object>();
+            List<Object[]> rows = new ArrayList<Object[]>();
+            for (Object[] d : chunk){
+               params.add(d[0]);
+               params.add(d[1]);
+               rows.add(new Object[]{ d[0], d[0], d[1], d[0], d[0] });
+            }//end for
+            chunk(deleteQuery(chunk.size()), params.toArray(), DELETE_QUERY, rows);
+         }//end for
+      }finally{
+         if (timed)
+            Metrics.end();
+      }//end try
+   }//end write
+
+   /**
+    * Runs one set-based statement, falling back to rowQuery once per row
+    * when it fails.
+    */
+   private void chunk (String query, Object[] params, String rowQuery, List<Object[]> rows) {
+      try{
+         this._esql.executeUpdate(query, params);
+         synchronized (this){
+            this._flushed += rows.size();
+            ++this._batches;
+         }//end synchronized
+         return;
+      }catch (SQLException e){
+         Metrics.error(e);
+      }//end try
+      // the statement was rolled back as a whole
+      for (Object[] row : rows){
+         try{
+            this._esql.executeUpdate(rowQuery, row);
+            synchronized (this){
+               ++this._flushed;
+            }
+         }catch (SQLException e){
+            synchronized (this){
+               ++this._failures;
+            }
+            System.err.println("Dropped queued write: " + e.getMessage());
+         }//end try
+      }//end for
+   }//end chunk
+
+   /**
+    * Stops the flusher after it has written every pending write.  Writes
+    * queued after close are written straight away.
+    */
+   public void close () {
+      synchronized (this){
+         this._closed = true;
+         this.notifyAll();
+      }//end synchronized
+      try{
+         this._flusher.join();
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+      }//end try
+   }//end close
+
+   public synchronized int getPending () { return this._delivered.size() + this._deletes.size(); }
+   public synchronized long getFlushed () { return this._flushed; }
+   public synchronized long getBatches () { return this._batches; }
+   public synchronized long getFailures () { return this._failures; }
+
+   /**
+    * @return a one line summary of the queue
+    */
+   public synchronized String stats () {
+      return String.format("pending=%d flushed=%d flushes=%d failures=%d",
+                           getPending(), this._flushed, this._batches, this._failures);
+   }//end stats
+}//end WriteBehindQueue
@@ -1,6 +1,7 @@
 #!/bin/bash
 DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
 psql -p $PGPORT $DB_NAME < $DIR/../src/create_tables.sql
-psql -p $PGPORT $DB_NAME < $DIR/../src/create_indexes.sql
+psql -p $PGPORT $DB_NAME -c "ALTER SEQUENCE message_msgid_seq CACHE ${MSG_SEQ_CACHE:-20}"
 psql -p $PGPORT $DB_NAME < $DIR/../src/load_data.sql
-psql -p $PGPORT $DB_NAME < $DIR/../src/triggers.sql
\ No newline at end of file
+psql -p $PGPORT $DB_NAME < $DIR/../src/create_index.sql
+psql -p $PGPORT $DB_NAME < $DIR/../src/triggers.sql
@@ -0,0 +1,5 @@
+#!/bin/bash
+# Converts MESSAGE.contents of an existing database to varchar(500).
+# Stop the application first, MESSAGE is locked while it runs.
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+psql -p $PGPORT $DB_NAME -X < $DIR/../src/migrate_message_contents.sql
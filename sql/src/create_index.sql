@@ -0,0 +1,91 @@
+/*
+ * Indexes for the queries issued by ProfNetwork.java
+ *
+ * Group #52
+ *
+ * USR, WORK_EXPR and EDUCATIONAL_DETAILS are only looked up by userId.
+ * Their primary keys already lead with userId, so those lookups are index
+ * scans without an extra index.  CONNECTION_USR lookups by userId use the
+ * (userId, connectionId) primary key as well, the partial indexes below
+ * only add the status filter.
+ */
+DROP INDEX IF EXISTS connection_accept_user_idx;
+DROP INDEX IF EXISTS connection_accept_conn_idx;
+DROP INDEX IF EXISTS connection_request_conn_idx;
+DROP INDEX IF EXISTS message_sender_inbox_idx;
+DROP INDEX IF EXISTS message_receiver_inbox_idx;
+DROP INDEX IF EXISTS message_receiver_sent_idx;
+DROP INDEX IF EXISTS message_purge_idx;
+DROP INDEX IF EXISTS message_pair_idx;
+DROP INDEX IF EXISTS conversation_recent_idx;
+DROP INDEX IF EXISTS usr_userid_trgm_idx;
+DROP INDEX IF EXISTS usr_name_trgm_idx;
+DROP INDEX IF EXISTS work_company_trgm_idx;
+DROP INDEX IF EXISTS edu_institution_trgm_idx;
+
+-- ViewFriends, CheckDepth and the friendship graph load, one per direction
+-- of an accepted connection.
+CREATE INDEX connection_accept_user_idx
+	ON CONNECTION_USR (userId, connectionId)
+	WHERE status = 'Accept';
+
+CREATE INDEX connection_accept_conn_idx
+	ON CONNECTION_USR (connectionId, userId)
+	WHERE status = 'Accept';
+
+-- ViewFriendRequests, pending requests addressed to a user.
+CREATE INDEX connection_request_conn_idx
+	ON CONNECTION_USR (connectionId, userId)
+	WHERE status = 'Request';
+
+-- Inbox pages are read in (sendTime, msgId) order per sender and per
+-- receiver.  deleteStatus is part of the key so deleted messages are
+-- filtered in the index without visiting the table.
+CREATE INDEX message_sender_inbox_idx
+	ON MESSAGE (senderId, sendTime, msgId, deleteStatus);
+
+CREATE INDEX message_receiver_inbox_idx
+	ON MESSAGE (receiverId, sendTime, msgId, deleteStatus);
+
+-- Messages that have not been delivered yet.  deleteStatus is in the key
+-- so the unread count of the main menu is an index-only scan.
+CREATE INDEX message_receiver_sent_idx
+	ON MESSAGE (receiverId, deleteStatus)
+	WHERE status = 'Sent';
+
+-- Messages deleted by both sides, waiting for MessagePurger.
+CREATE INDEX message_purge_idx
+	ON MESSAGE (msgId)
+	WHERE deleteStatus = 3;
+
+-- One conversation, in order, for the thread view and for finding the
+-- new latest message of a conversation when its last one is deleted.
+CREATE INDEX message_pair_idx
+	ON MESSAGE (senderId, receiverId, sendTime, msgId, deleteStatus);
+
+-- A user's conversations, most recent first.
+CREATE INDEX conversation_recent_idx
+	ON CONVERSATION (userId, lastTime, lastMsgId);
+
+-- People search matches userId, name, company and institution by trigram
+-- similarity and by substring.  The varchar(50) columns are indexed as
+-- text, the same expression SearchUsers compares.
+CREATE EXTENSION IF NOT EXISTS pg_trgm;
+
+CREATE INDEX usr_userid_trgm_idx
+	ON USR USING gin (userId gin_trgm_ops);
+
+CREATE INDEX usr_name_trgm_idx
+	ON USR USING gin ((CAST(name AS text)) gin_trgm_ops);
+
+CREATE INDEX work_company_trgm_idx
+	ON WORK_EXPR USING gin ((CAST(company AS text)) gin_trgm_ops);
+
+CREATE INDEX edu_institution_trgm_idx
+	ON EDUCATIONAL_DETAILS USING gin ((CAST(instituitionName AS text)) gin_trgm_ops);
+
+ANALYZE USR;
+ANALYZE WORK_EXPR;
+ANALYZE EDUCATIONAL_DETAILS;
+ANALYZE CONNECTION_USR;
+ANALYZE MESSAGE;
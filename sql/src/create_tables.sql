@@ -9,26 +9,34 @@
  *
  * Group #52
  */
+DROP TABLE CONVERSATION;
+DROP TABLE USR_STATS;
 DROP TABLE WORK_EXPR;
 DROP TABLE EDUCATIONAL_DETAILS;
 DROP TABLE MESSAGE;
 DROP TABLE CONNECTION_USR;
 DROP TABLE USR;
+DROP SEQUENCE IF EXISTS message_msgid_seq;
+
+-- Message ids are handed out by the server.  Sessions cache a block of ids
+-- so busy senders do not contend on the sequence, create_db.sh sets the
+-- block size from MSG_SEQ_CACHE.
+CREATE SEQUENCE message_msgid_seq CACHE 1;
 
 
 CREATE TABLE USR(
 	userId 					varchar 		UNIQUE NOT NULL, 
 	password 				varchar 		NOT NULL,
 	email 					text 			NOT NULL,
-	name 					char(50),
+	name 					varchar(50),
 	dateOfBirth 			date,
 	PRIMARY KEY(userId));
 
 CREATE TABLE WORK_EXPR(
 	userId 					varchar 		NOT NULL, 
-	company 				char(50) 		NOT NULL, 
-	role 					char(50) 		NOT NULL,
-	location 				char(50),
+	company 				varchar(50) 	NOT NULL, 
+	role 					varchar(50) 	NOT NULL,
+	location 				varchar(50),
 	startDate 				date,
 	endDate 				date,
 	PRIMARY KEY(userId,company,role,startDate),
@@ -36,30 +44,57 @@ CREATE TABLE WORK_EXPR(
 
 CREATE TABLE EDUCATIONAL_DETAILS(
 	userId 					varchar 		NOT NULL, 
-	instituitionName 		char(50) 		NOT NULL, 
-	major 					char(50) 		NOT NULL,
-	degree 					char(50) 		NOT NULL,
+	instituitionName 		varchar(50) 	NOT NULL, 
+	major 					varchar(50) 	NOT NULL,
+	degree 					varchar(50) 	NOT NULL,
 	startdate 				date,
 	enddate 				date,
 	PRIMARY KEY(userId,major,degree),
 	FOREIGN KEY (userId) REFERENCES USR (userId) ON DELETE CASCADE);
 
+-- contents is stored at its own length rather than blank-padded to 500
+-- characters.
 CREATE TABLE MESSAGE(
-	msgId 					integer 		UNIQUE NOT NULL, 
+	msgId 					integer 		DEFAULT nextval('message_msgid_seq') UNIQUE NOT NULL, 
 	senderId 				varchar 		DEFAULT '<DELETED>' NOT NULL,
 	receiverId 				varchar 		DEFAULT '<DELETED>' NOT NULL,
-	contents 				char(500) 		NOT NULL,
-	sendTime 				timestamp		DEFAULT CURRENT_TIMESTAMP,
-	deleteStatus 			integer			DEFAULT 0,
-	status 					char(30) 		NOT NULL,
+	contents 				varchar(500) 	NOT NULL,
+	sendTime 				timestamp		DEFAULT CURRENT_TIMESTAMP NOT NULL,
+	deleteStatus 			integer			DEFAULT 0 CHECK (deleteStatus BETWEEN 0 AND 3),
+	status 					varchar(30) 	NOT NULL,
 	PRIMARY KEY(msgId),
 	FOREIGN KEY (senderId) REFERENCES USR (userId) ON DELETE SET DEFAULT,
 	FOREIGN KEY (receiverId) REFERENCES USR (userId) ON DELETE SET DEFAULT);
 
+ALTER SEQUENCE message_msgid_seq OWNED BY MESSAGE.msgId;
+
 CREATE TABLE CONNECTION_USR(
 	userId 					varchar 		NOT NULL, 
 	connectionId 			varchar 		NOT NULL, 
-	status 					char(30) 		DEFAULT 'Request'	NOT NULL ,
+	status 					varchar(30) 	DEFAULT 'Request'	NOT NULL ,
 	PRIMARY KEY(userId,connectionId),
 	FOREIGN KEY (userId) REFERENCES USR (userId) ON DELETE CASCADE,
-	FOREIGN KEY (connectionId) REFERENCES USR (userId) ON DELETE CASCADE);
\ No newline at end of file
+	FOREIGN KEY (connectionId) REFERENCES USR (userId) ON DELETE CASCADE);
+
+-- Per user counts kept up to date by the triggers of triggers.sql, so the
+-- menus read them with a single key lookup.
+CREATE TABLE USR_STATS(
+	userId 					varchar 		NOT NULL, 
+	friendCount 			integer 		DEFAULT 0 NOT NULL, 
+	pendingCount 			integer 		DEFAULT 0 NOT NULL, 
+	unreadCount 			integer 		DEFAULT 0 NOT NULL, 
+	PRIMARY KEY(userId),
+	FOREIGN KEY (userId) REFERENCES USR (userId) ON DELETE CASCADE);
+
+-- One row per user and counterpart they have visible messages with,
+-- pointing at the latest of them.  Kept up to date by the triggers of
+-- triggers.sql, so the conversation list does not scan MESSAGE.
+CREATE TABLE CONVERSATION(
+	userId 					varchar 		NOT NULL, 
+	otherId 				varchar 		NOT NULL, 
+	lastMsgId 				integer 		NOT NULL, 
+	lastTime 				timestamp 		NOT NULL, 
+	unreadCount 			integer 		DEFAULT 0 NOT NULL, 
+	PRIMARY KEY(userId,otherId),
+	FOREIGN KEY (userId) REFERENCES USR (userId) ON DELETE CASCADE,
+	FOREIGN KEY (otherId) REFERENCES USR (userId) ON DELETE CASCADE);
\ No newline at end of file
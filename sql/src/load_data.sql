@@ -8,6 +8,9 @@
  * 861008681
  *
  * Group #52
+ *
+ * COPY reads these files on the database host.  To load them from the
+ * client side in parallel, use java/scripts/load_data.sh instead.
  */
 COPY USR 
 FROM 'CS166_Project/data/USR.txt' 
@@ -25,6 +28,9 @@ COPY MESSAGE
 FROM 'CS166_Project/data/Message.txt' 
 WITH DELIMITER E'\t';
 
+-- continue numbering new messages after the loaded ones
+SELECT setval('message_msgid_seq', COALESCE(MAX(msgId), 0) + 1, false) FROM MESSAGE;
+
 COPY CONNECTION_USR 
 FROM 'CS166_Project/data/Connection.txt' 
 WITH DELIMITER E'\t';
\ No newline at end of file
@@ -0,0 +1,30 @@
+/*
+ * Converts MESSAGE.contents of an existing database from char(500) to
+ * varchar(500), the type create_tables.sql now declares
+ *
+ * Group #52
+ *
+ * The trailing blanks char(500) padded every message with are dropped.
+ * Changing the type rewrites MESSAGE and its indexes under an exclusive
+ * lock, so run it while the application is stopped.  The sizes of MESSAGE
+ * with its indexes and TOAST table are printed before and after.
+ */
+\echo 'MESSAGE before'
+SELECT pg_size_pretty(pg_total_relation_size(C.oid)) AS total,
+	pg_size_pretty(pg_relation_size(C.oid)) AS heap,
+	pg_size_pretty(pg_indexes_size(C.oid)) AS indexes,
+	pg_size_pretty(COALESCE(pg_total_relation_size(NULLIF(C.reltoastrelid, 0)), 0)) AS toast
+FROM pg_class C WHERE C.oid = 'message'::regclass;
+
+BEGIN;
+ALTER TABLE MESSAGE ALTER COLUMN contents TYPE varchar(500) USING rtrim(contents);
+COMMIT;
+
+ANALYZE MESSAGE;
+
+\echo 'MESSAGE after'
+SELECT pg_size_pretty(pg_total_relation_size(C.oid)) AS total,
+	pg_size_pretty(pg_relation_size(C.oid)) AS heap,
+	pg_size_pretty(pg_indexes_size(C.oid)) AS indexes,
+	pg_size_pretty(COALESCE(pg_total_relation_size(NULLIF(C.reltoastrelid, 0)), 0)) AS toast
+FROM pg_class C WHERE C.oid = 'message'::regclass;
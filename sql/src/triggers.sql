@@ -0,0 +1,258 @@
+/*
+ * Triggers for CONNECTION_USR, MESSAGE, USR_STATS and CONVERSATION
+ *
+ * Group #52
+ *
+ * Run after the data is loaded, create_db.sh does so.  The counts of the
+ * rows already there are filled in at the end of this script.
+ */
+
+-- A request sent back to someone who already asked accepts their request
+-- instead of adding a second row for the same pair, and a request to
+-- someone whose request was already accepted is dropped.
+CREATE OR REPLACE FUNCTION connection_accept_reciprocal() RETURNS trigger AS $$
+BEGIN
+	IF NEW.status = 'Request' THEN
+		PERFORM 1 FROM CONNECTION_USR
+		WHERE userId = NEW.connectionId AND connectionId = NEW.userId AND status = 'Accept';
+		IF FOUND THEN
+			RETURN NULL;
+		END IF;
+		UPDATE CONNECTION_USR SET status = 'Accept'
+		WHERE userId = NEW.connectionId AND connectionId = NEW.userId AND status = 'Request';
+		IF FOUND THEN
+			RETURN NULL;
+		END IF;
+	END IF;
+	RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS connection_accept_reciprocal_trg ON CONNECTION_USR;
+CREATE TRIGGER connection_accept_reciprocal_trg
+	BEFORE INSERT ON CONNECTION_USR
+	FOR EACH ROW EXECUTE PROCEDURE connection_accept_reciprocal();
+
+
+-- Adds to the counts of one user, creating the row of users that predate
+-- these triggers.
+CREATE OR REPLACE FUNCTION usr_stats_add(uid varchar, friends integer, pending integer, unread integer)
+RETURNS void AS $$
+BEGIN
+	IF friends = 0 AND pending = 0 AND unread = 0 THEN
+		RETURN;
+	END IF;
+	INSERT INTO USR_STATS AS S (userId, friendCount, pendingCount, unreadCount)
+	VALUES (uid, friends, pending, unread)
+	ON CONFLICT (userId) DO UPDATE SET
+		friendCount = S.friendCount + friends,
+		pendingCount = S.pendingCount + pending,
+		unreadCount = S.unreadCount + unread;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION usr_stats_new_user() RETURNS trigger AS $$
+BEGIN
+	INSERT INTO USR_STATS (userId) VALUES (NEW.userId) ON CONFLICT (userId) DO NOTHING;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS usr_stats_new_user_trg ON USR;
+CREATE TRIGGER usr_stats_new_user_trg
+	AFTER INSERT ON USR
+	FOR EACH ROW EXECUTE PROCEDURE usr_stats_new_user();
+
+-- An accepted connection counts as a friend of both users, a request as
+-- pending for the user it was sent to.  The old row is taken out and the
+-- new one added, which covers every status change.
+CREATE OR REPLACE FUNCTION usr_stats_connection() RETURNS trigger AS $$
+BEGIN
+	IF TG_OP IN ('UPDATE', 'DELETE') THEN
+		IF OLD.status = 'Accept' THEN
+			PERFORM usr_stats_add(OLD.userId, -1, 0, 0);
+			PERFORM usr_stats_add(OLD.connectionId, -1, 0, 0);
+		ELSIF OLD.status = 'Request' THEN
+			PERFORM usr_stats_add(OLD.connectionId, 0, -1, 0);
+		END IF;
+	END IF;
+	IF TG_OP IN ('INSERT', 'UPDATE') THEN
+		IF NEW.status = 'Accept' THEN
+			PERFORM usr_stats_add(NEW.userId, 1, 0, 0);
+			PERFORM usr_stats_add(NEW.connectionId, 1, 0, 0);
+		ELSIF NEW.status = 'Request' THEN
+			PERFORM usr_stats_add(NEW.connectionId, 0, 1, 0);
+		END IF;
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS usr_stats_connection_trg ON CONNECTION_USR;
+CREATE TRIGGER usr_stats_connection_trg
+	AFTER INSERT OR UPDATE OR DELETE ON CONNECTION_USR
+	FOR EACH ROW EXECUTE PROCEDURE usr_stats_connection();
+
+-- A message is unread while it has not been delivered and the receiver
+-- has not deleted it.
+CREATE OR REPLACE FUNCTION usr_stats_message() RETURNS trigger AS $$
+BEGIN
+	IF TG_OP IN ('UPDATE', 'DELETE') AND OLD.status = 'Sent' AND OLD.deleteStatus IN (0, 1) THEN
+		PERFORM usr_stats_add(OLD.receiverId, 0, 0, -1);
+	END IF;
+	IF TG_OP IN ('INSERT', 'UPDATE') AND NEW.status = 'Sent' AND NEW.deleteStatus IN (0, 1) THEN
+		PERFORM usr_stats_add(NEW.receiverId, 0, 0, 1);
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS usr_stats_message_trg ON MESSAGE;
+CREATE TRIGGER usr_stats_message_trg
+	AFTER INSERT OR DELETE ON MESSAGE
+	FOR EACH ROW EXECUTE PROCEDURE usr_stats_message();
+DROP TRIGGER IF EXISTS usr_stats_message_update_trg ON MESSAGE;
+CREATE TRIGGER usr_stats_message_update_trg
+	AFTER UPDATE OF status, deleteStatus, receiverId ON MESSAGE
+	FOR EACH ROW EXECUTE PROCEDURE usr_stats_message();
+
+
+-- Adds a message to one side of a conversation.  The head moves only
+-- forward, so messages arriving out of order keep the latest one.
+CREATE OR REPLACE FUNCTION conversation_add(usr varchar, other varchar, msg integer, sent timestamp, unread integer)
+RETURNS void AS $$
+BEGIN
+	INSERT INTO CONVERSATION AS C (userId, otherId, lastMsgId, lastTime, unreadCount)
+	VALUES (usr, other, msg, sent, unread)
+	ON CONFLICT (userId, otherId) DO UPDATE SET
+		lastMsgId = CASE WHEN (sent, msg) > (C.lastTime, C.lastMsgId) THEN msg ELSE C.lastMsgId END,
+		lastTime = GREATEST(C.lastTime, sent),
+		unreadCount = C.unreadCount + unread;
+END;
+$$ LANGUAGE plpgsql;
+
+-- A message left one side of a conversation.  If it was the latest one the
+-- next visible message becomes the head, found on message_pair_idx, and a
+-- conversation with no visible message left is removed.
+CREATE OR REPLACE FUNCTION conversation_hide(usr varchar, other varchar, msg integer)
+RETURNS void AS $$
+DECLARE
+	head RECORD;
+BEGIN
+	PERFORM 1 FROM CONVERSATION WHERE userId = usr AND otherId = other AND lastMsgId = msg;
+	IF NOT FOUND THEN
+		RETURN;
+	END IF;
+	SELECT H.msgId, H.sendTime INTO head FROM (
+		(SELECT msgId, sendTime FROM MESSAGE
+		WHERE senderId = usr AND receiverId = other AND deleteStatus IN (0, 2)
+		ORDER BY sendTime DESC, msgId DESC LIMIT 1)
+		UNION ALL
+		(SELECT msgId, sendTime FROM MESSAGE
+		WHERE senderId = other AND receiverId = usr AND deleteStatus IN (0, 1)
+		ORDER BY sendTime DESC, msgId DESC LIMIT 1)
+		) H ORDER BY H.sendTime DESC, H.msgId DESC LIMIT 1;
+	IF FOUND THEN
+		UPDATE CONVERSATION SET lastMsgId = head.msgId, lastTime = head.sendTime
+		WHERE userId = usr AND otherId = other;
+	ELSE
+		DELETE FROM CONVERSATION WHERE userId = usr AND otherId = other;
+	END IF;
+END;
+$$ LANGUAGE plpgsql;
+
+-- The sender sees a message until bit 1 of deleteStatus is set, the
+-- receiver until bit 2 is.  Both sides of a new message are written in
+-- userId order, so two users messaging each other at the same time do not
+-- deadlock on each other's rows.
+CREATE OR REPLACE FUNCTION conversation_message() RETURNS trigger AS $$
+DECLARE
+	was_unread integer := 0;
+	is_unread integer := 0;
+BEGIN
+	IF TG_OP = 'INSERT' THEN
+		IF NEW.status = 'Sent' THEN
+			is_unread := 1;
+		END IF;
+		IF NEW.senderId <= NEW.receiverId AND NEW.deleteStatus IN (0, 2) THEN
+			PERFORM conversation_add(NEW.senderId, NEW.receiverId, NEW.msgId, NEW.sendTime, 0);
+		END IF;
+		IF NEW.deleteStatus IN (0, 1) THEN
+			PERFORM conversation_add(NEW.receiverId, NEW.senderId, NEW.msgId, NEW.sendTime, is_unread);
+		END IF;
+		IF NEW.senderId > NEW.receiverId AND NEW.deleteStatus IN (0, 2) THEN
+			PERFORM conversation_add(NEW.senderId, NEW.receiverId, NEW.msgId, NEW.sendTime, 0);
+		END IF;
+		RETURN NULL;
+	END IF;
+	IF OLD.status = 'Sent' AND OLD.deleteStatus IN (0, 1) THEN
+		was_unread := 1;
+	END IF;
+	IF TG_OP = 'UPDATE' AND NEW.status = 'Sent' AND NEW.deleteStatus IN (0, 1) THEN
+		is_unread := 1;
+	END IF;
+	IF is_unread <> was_unread THEN
+		UPDATE CONVERSATION SET unreadCount = unreadCount + is_unread - was_unread
+		WHERE userId = OLD.receiverId AND otherId = OLD.senderId;
+	END IF;
+	IF OLD.deleteStatus IN (0, 2) AND (TG_OP = 'DELETE' OR NEW.deleteStatus NOT IN (0, 2)) THEN
+		PERFORM conversation_hide(OLD.senderId, OLD.receiverId, OLD.msgId);
+	END IF;
+	IF OLD.deleteStatus IN (0, 1) AND (TG_OP = 'DELETE' OR NEW.deleteStatus NOT IN (0, 1)) THEN
+		PERFORM conversation_hide(OLD.receiverId, OLD.senderId, OLD.msgId);
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS conversation_message_trg ON MESSAGE;
+CREATE TRIGGER conversation_message_trg
+	AFTER INSERT OR DELETE ON MESSAGE
+	FOR EACH ROW EXECUTE PROCEDURE conversation_message();
+DROP TRIGGER IF EXISTS conversation_message_update_trg ON MESSAGE;
+CREATE TRIGGER conversation_message_update_trg
+	AFTER UPDATE OF status, deleteStatus ON MESSAGE
+	FOR EACH ROW EXECUTE PROCEDURE conversation_message();
+
+-- CONVERSATION.lastTime and the (sendTime, msgId) paging need every
+-- message to have a time.  Databases created before sendTime was NOT NULL
+-- get the current time for the messages without one.
+BEGIN;
+LOCK TABLE MESSAGE IN SHARE ROW EXCLUSIVE MODE;
+UPDATE MESSAGE SET sendTime = CURRENT_TIMESTAMP WHERE sendTime IS NULL;
+ALTER TABLE MESSAGE ALTER COLUMN sendTime SET NOT NULL;
+COMMIT;
+
+-- Counts of the rows that are already there.  A pair accepted in both
+-- directions is one friend.
+BEGIN;
+LOCK TABLE USR, CONNECTION_USR, MESSAGE IN SHARE MODE;
+DELETE FROM USR_STATS;
+INSERT INTO USR_STATS (userId, friendCount, pendingCount, unreadCount)
+SELECT U.userId, COALESCE(F.n, 0), COALESCE(P.n, 0), COALESCE(M.n, 0)
+FROM USR U
+LEFT JOIN (SELECT A.id, COUNT(DISTINCT A.other) AS n
+	FROM (SELECT userId AS id, connectionId AS other FROM CONNECTION_USR WHERE status = 'Accept'
+		UNION ALL
+		SELECT connectionId, userId FROM CONNECTION_USR WHERE status = 'Accept') A
+	GROUP BY A.id) F ON F.id = U.userId
+LEFT JOIN (SELECT connectionId AS id, COUNT(*) AS n
+	FROM CONNECTION_USR WHERE status = 'Request'
+	GROUP BY connectionId) P ON P.id = U.userId
+LEFT JOIN (SELECT receiverId AS id, COUNT(*) AS n
+	FROM MESSAGE WHERE status = 'Sent' AND deleteStatus IN (0, 1)
+	GROUP BY receiverId) M ON M.id = U.userId;
+DELETE FROM CONVERSATION;
+INSERT INTO CONVERSATION (userId, otherId, lastMsgId, lastTime, unreadCount)
+SELECT DISTINCT ON (V.userId, V.otherId) V.userId, V.otherId, V.msgId, V.sendTime,
+	SUM(V.unread) OVER (PARTITION BY V.userId, V.otherId)
+FROM (SELECT senderId AS userId, receiverId AS otherId, msgId, sendTime, 0 AS unread
+	FROM MESSAGE WHERE deleteStatus IN (0, 2)
+	UNION ALL
+	SELECT receiverId, senderId, msgId, sendTime, CASE WHEN status = 'Sent' THEN 1 ELSE 0 END
+	FROM MESSAGE WHERE deleteStatus IN (0, 1)) V
+ORDER BY V.userId, V.otherId, V.sendTime DESC, V.msgId DESC;
+COMMIT;
+
+ANALYZE USR_STATS;
+ANALYZE CONVERSATION;